@@ -43,7 +43,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 public class AccountOwner implements ImapsnDataFile {
-	private static String FILENAME = "/account-owner.json";
+	static String FILENAME = "/account-owner.json";
 	ImapClientBase imap;
 	JSONObject ownerJson;
 
@@ -76,6 +76,10 @@ public class AccountOwner implements ImapsnDataFile {
 	// persisting back to IMAPSN
 
 	public void save() throws MessagingException {
+		imap.getFlushScheduler().markDirty(this);
+	}
+
+	public void write() throws MessagingException {
 		imap.put(getFilename(), ownerJson);
 	}
 
@@ -0,0 +1,89 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes read and written by the application and bytes that actually
+ * crossed the wire, so the bandwidth saved by COMPRESS=DEFLATE can be
+ * measured. Without compression both pairs are equal.
+ */
+public class ByteCounters {
+
+	AtomicLong bytesIn = new AtomicLong();
+	AtomicLong wireBytesIn = new AtomicLong();
+	AtomicLong bytesOut = new AtomicLong();
+	AtomicLong wireBytesOut = new AtomicLong();
+
+	// properties
+
+	/**
+	 * Return the bytes handed to the application, after decompression.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getWireBytesIn() {
+		return wireBytesIn.get();
+	}
+
+	/**
+	 * Return the bytes written by the application, before compression.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getWireBytesOut() {
+		return wireBytesOut.get();
+	}
+
+	/**
+	 * Return the bytes compression kept off the wire, both directions.
+	 */
+	public long getBytesSaved() {
+		return getBytesIn() + getBytesOut() - getWireBytesIn()
+				- getWireBytesOut();
+	}
+
+	public void reset() {
+		bytesIn.set(0);
+		wireBytesIn.set(0);
+		bytesOut.set(0);
+		wireBytesOut.set(0);
+	}
+
+	public String toString() {
+		return "in " + getBytesIn() + "/" + getWireBytesIn() + ", out "
+				+ getBytesOut() + "/" + getWireBytesOut();
+	}
+
+}
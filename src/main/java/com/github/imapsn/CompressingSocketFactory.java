@@ -0,0 +1,277 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The socket factory the ImapConnectionPool gives JavaMail for accounts
+ * with "imap-compress" set. Its sockets carry DeflateStreams, so that a
+ * COMPRESS DEFLATE command sent over them turns compression on. Ssl does
+ * the same over SSL.
+ * 
+ * JavaMail only takes a factory class, so the account a socket belongs to
+ * is set per thread: the pool calls countInto() with the account's
+ * ByteCounters around each connect, and the sockets opened meanwhile count
+ * their traffic there. The few a store opens on its own, outside a lease,
+ * count in getCounters().
+ */
+public class CompressingSocketFactory extends SocketFactory {
+
+	static final ByteCounters COUNTERS = new ByteCounters();
+	static ThreadLocal<ByteCounters> current = new ThreadLocal<ByteCounters>();
+	static CompressingSocketFactory plain = new CompressingSocketFactory(
+			SocketFactory.getDefault());
+
+	SocketFactory factory;
+
+	protected CompressingSocketFactory(SocketFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Called by JavaMail.
+	 */
+	public static SocketFactory getDefault() {
+		return plain;
+	}
+
+	/**
+	 * Return the traffic of the sockets opened outside countInto().
+	 */
+	public static ByteCounters getCounters() {
+		return COUNTERS;
+	}
+
+	/**
+	 * Count the traffic of the sockets this thread opens into
+	 * <code>counters</code>, until clear().
+	 */
+	public static void countInto(ByteCounters counters) {
+		current.set(counters);
+	}
+
+	public static void clear() {
+		current.remove();
+	}
+
+	static ByteCounters getCurrentCounters() {
+		ByteCounters ret = current.get();
+		return (ret == null) ? COUNTERS : ret;
+	}
+
+	// SocketFactory
+
+	public Socket createSocket() throws IOException {
+		return new CompressingSocket(factory.createSocket(),
+				getCurrentCounters());
+	}
+
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket ret = createSocket();
+		ret.connect(new InetSocketAddress(host, port));
+		return ret;
+	}
+
+	public Socket createSocket(String host, int port, InetAddress localHost,
+			int localPort) throws IOException {
+		Socket ret = createSocket();
+		ret.bind(new InetSocketAddress(localHost, localPort));
+		ret.connect(new InetSocketAddress(host, port));
+		return ret;
+	}
+
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		Socket ret = createSocket();
+		ret.connect(new InetSocketAddress(host, port));
+		return ret;
+	}
+
+	public Socket createSocket(InetAddress address, int port,
+			InetAddress localAddress, int localPort) throws IOException {
+		Socket ret = createSocket();
+		ret.bind(new InetSocketAddress(localAddress, localPort));
+		ret.connect(new InetSocketAddress(address, port));
+		return ret;
+	}
+
+	// inner classes
+
+	public static class Ssl extends CompressingSocketFactory {
+
+		static Ssl ssl = new Ssl();
+
+		protected Ssl() {
+			super(SSLSocketFactory.getDefault());
+		}
+
+		public static SocketFactory getDefault() {
+			return ssl;
+		}
+	}
+
+	/**
+	 * A socket that hands out the DeflateStreams of the socket it wraps.
+	 */
+	static class CompressingSocket extends Socket {
+
+		Socket socket;
+		ByteCounters counters;
+		DeflateStreams streams = null;
+
+		CompressingSocket(Socket socket, ByteCounters counters) {
+			this.socket = socket;
+			this.counters = counters;
+		}
+
+		protected synchronized DeflateStreams getStreams() throws IOException {
+			if (streams == null) {
+				streams = new DeflateStreams(socket.getInputStream(), socket
+						.getOutputStream(), counters);
+			}
+			return streams;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return getStreams().getInputStream();
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return getStreams().getOutputStream();
+		}
+
+		public void connect(SocketAddress endpoint) throws IOException {
+			socket.connect(endpoint);
+		}
+
+		public void connect(SocketAddress endpoint, int timeout)
+				throws IOException {
+			socket.connect(endpoint, timeout);
+		}
+
+		public void bind(SocketAddress bindpoint) throws IOException {
+			socket.bind(bindpoint);
+		}
+
+		public InetAddress getInetAddress() {
+			return socket.getInetAddress();
+		}
+
+		public InetAddress getLocalAddress() {
+			return socket.getLocalAddress();
+		}
+
+		public int getPort() {
+			return socket.getPort();
+		}
+
+		public int getLocalPort() {
+			return socket.getLocalPort();
+		}
+
+		public SocketAddress getRemoteSocketAddress() {
+			return socket.getRemoteSocketAddress();
+		}
+
+		public SocketAddress getLocalSocketAddress() {
+			return socket.getLocalSocketAddress();
+		}
+
+		public void setTcpNoDelay(boolean on) throws SocketException {
+			socket.setTcpNoDelay(on);
+		}
+
+		public boolean getTcpNoDelay() throws SocketException {
+			return socket.getTcpNoDelay();
+		}
+
+		public void setSoTimeout(int timeout) throws SocketException {
+			socket.setSoTimeout(timeout);
+		}
+
+		public int getSoTimeout() throws SocketException {
+			return socket.getSoTimeout();
+		}
+
+		public void setKeepAlive(boolean on) throws SocketException {
+			socket.setKeepAlive(on);
+		}
+
+		public boolean getKeepAlive() throws SocketException {
+			return socket.getKeepAlive();
+		}
+
+		public void shutdownInput() throws IOException {
+			socket.shutdownInput();
+		}
+
+		public void shutdownOutput() throws IOException {
+			socket.shutdownOutput();
+		}
+
+		public synchronized void close() throws IOException {
+			socket.close();
+		}
+
+		public boolean isConnected() {
+			return socket.isConnected();
+		}
+
+		public boolean isBound() {
+			return socket.isBound();
+		}
+
+		public boolean isClosed() {
+			return socket.isClosed();
+		}
+
+		public boolean isInputShutdown() {
+			return socket.isInputShutdown();
+		}
+
+		public boolean isOutputShutdown() {
+			return socket.isOutputShutdown();
+		}
+
+		public String toString() {
+			return socket.toString();
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The two streams of an IMAP connection that can switch to COMPRESS=DEFLATE
+ * (RFC 4978) underneath JavaMail, which keeps its own streams private.
+ * 
+ * The output side watches for a <code>tag COMPRESS DEFLATE</code> command
+ * line, the input side for that tag's response. If the response is OK, every
+ * byte after its line is raw deflate in both directions; a NO or BAD
+ * leaves the connection as it was. Output is sync-flushed on every flush()
+ * so a command never waits in the deflater.
+ */
+public class DeflateStreams {
+
+	static Pattern COMPRESS = Pattern.compile("(\\S+) COMPRESS DEFLATE",
+			Pattern.CASE_INSENSITIVE);
+	static final int MAX_LINE = 64; // enough for a tag and a status word
+
+	ByteCounters counters;
+	PushbackInputStream wireIn;
+	OutputStream wireOut;
+	InputStream in;
+	OutputStream out;
+	InputStream inflated = null;
+	DeflaterOutputStream deflated = null;
+	Deflater deflater = null;
+	String pendingTag = null;
+	StringBuilder outLine = new StringBuilder();
+	StringBuilder inLine = new StringBuilder();
+
+	public DeflateStreams(InputStream rawIn, OutputStream rawOut,
+			ByteCounters counters) {
+		this.counters = counters;
+		this.wireIn = new PushbackInputStream(new CountingInputStream(rawIn),
+				8192);
+		this.wireOut = new CountingOutputStream(rawOut);
+		this.in = new Input();
+		this.out = new Output();
+	}
+
+	// properties
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	public synchronized boolean isCompressed() {
+		return inflated != null;
+	}
+
+	// switching
+
+	/**
+	 * Look at a command line going out, without its CRLF.
+	 */
+	protected synchronized void sentLine(String line) {
+		Matcher m = COMPRESS.matcher(line);
+		if (inflated == null && m.matches()) {
+			pendingTag = m.group(1);
+			inLine.setLength(0);
+		}
+	}
+
+	/**
+	 * Look at a response line coming in, without its CRLF. Return true if it
+	 * is the OK for the COMPRESS command.
+	 */
+	protected synchronized boolean receivedLine(String line) {
+		if (!line.startsWith(pendingTag + " ")) {
+			return false;
+		}
+		String status = line.substring(pendingTag.length() + 1);
+		pendingTag = null;
+		return status.regionMatches(true, 0, "OK", 0, 2);
+	}
+
+	protected synchronized void start() {
+		inflated = new InflaterInputStream(wireIn, new Inflater(true), 8192);
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflated = new DeflaterOutputStream(wireOut, deflater, 8192, true);
+	}
+
+	// inner classes
+
+	class Input extends InputStream {
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return (n == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (isCompressed()) {
+				int n = inflated.read(b, off, len);
+				if (n > 0) {
+					counters.bytesIn.addAndGet(n);
+				}
+				return n;
+			}
+			int n = wireIn.read(b, off, len);
+			if (n <= 0) {
+				return n;
+			}
+			synchronized (DeflateStreams.this) {
+				for (int i = off; pendingTag != null && i < off + n; i++) {
+					if (b[i] == '\n') {
+						String line = inLine.toString().trim();
+						inLine.setLength(0);
+						if (receivedLine(line)) {
+							// the rest is compressed already
+							int rest = off + n - i - 1;
+							if (rest > 0) {
+								wireIn.unread(b, i + 1, rest);
+							}
+							start();
+							n -= rest;
+						}
+					} else if (inLine.length() < MAX_LINE) {
+						inLine.append((char) b[i]);
+					}
+				}
+			}
+			counters.bytesIn.addAndGet(n);
+			return n;
+		}
+
+		public void close() throws IOException {
+			wireIn.close();
+		}
+	}
+
+	class Output extends OutputStream {
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			counters.bytesOut.addAndGet(len);
+			if (isCompressed()) {
+				deflated.write(b, off, len);
+				return;
+			}
+			for (int i = off; i < off + len; i++) {
+				if (b[i] == '\n') {
+					sentLine(outLine.toString().trim());
+					outLine.setLength(0);
+				} else if (outLine.length() < MAX_LINE) {
+					outLine.append((char) b[i]);
+				}
+			}
+			wireOut.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			if (isCompressed()) {
+				deflated.flush();
+			} else {
+				wireOut.flush();
+			}
+		}
+
+		public void close() throws IOException {
+			if (deflater != null) {
+				deflater.end();
+			}
+			wireOut.close();
+		}
+	}
+
+	class CountingInputStream extends FilterInputStream {
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				counters.wireBytesIn.incrementAndGet();
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				counters.wireBytesIn.addAndGet(n);
+			}
+			return n;
+		}
+	}
+
+	class CountingOutputStream extends FilterOutputStream {
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			counters.wireBytesOut.incrementAndGet();
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			counters.wireBytesOut.addAndGet(len);
+		}
+	}
+
+}
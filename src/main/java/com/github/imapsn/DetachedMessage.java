@@ -0,0 +1,64 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * An in-memory copy of an incoming message that remembers where it came
+ * from. Handlers can read and verify it without the source folder's
+ * connection; ProcessedMessages uses the source folder and UID to remove
+ * the original.
+ */
+public class DetachedMessage extends MimeMessage {
+
+	IMAPFolder sourceFolder;
+	long sourceUid;
+
+	/**
+	 * Copy <code>source</code>, reading all of it from its folder.
+	 */
+	public DetachedMessage(MimeMessage source) throws MessagingException {
+		super(source);
+		this.sourceFolder = (IMAPFolder) source.getFolder();
+		this.sourceUid = sourceFolder.getUID(source);
+	}
+
+	public IMAPFolder getSourceFolder() {
+		return sourceFolder;
+	}
+
+	public long getSourceUid() {
+		return sourceUid;
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UIDSet;
+
+/**
+ * Collects the UIDs of replaced and deleted messages in a folder and removes
+ * them in batches: one UID STORE of \Deleted over the whole set followed by
+ * a UID EXPUNGE of just that set when the server supports UIDPLUS, or a
+ * plain EXPUNGE when it doesn't.
+ */
+public class ExpungeQueue {
+
+	public static int DEFAULT_BATCH_SIZE = 50;
+
+	IMAPFolder folder;
+	int batchSize;
+	List<Long> uids = new ArrayList<Long>();
+	Boolean uidplus = null;
+
+	public ExpungeQueue(IMAPFolder folder) {
+		this(folder, DEFAULT_BATCH_SIZE);
+	}
+
+	public ExpungeQueue(IMAPFolder folder, int batchSize) {
+		this.folder = folder;
+		this.batchSize = batchSize;
+	}
+
+	// properties
+
+	public synchronized int size() {
+		return uids.size();
+	}
+
+	public synchronized boolean isUidplus() throws MessagingException {
+		if (uidplus == null) {
+			uidplus = ((IMAPStore) folder.getStore()).hasCapability("UIDPLUS");
+		}
+		return uidplus.booleanValue();
+	}
+
+	/**
+	 * Continue on <code>folder</code>, the same folder reopened. The queued
+	 * UIDs are kept only if <code>keep</code>, i.e. the UIDVALIDITY didn't
+	 * change.
+	 */
+	public synchronized void reset(IMAPFolder folder, boolean keep) {
+		this.folder = folder;
+		if (!keep) {
+			uids.clear();
+		}
+	}
+
+	// queue interface
+
+	/**
+	 * Queue message <code>uid</code> for removal, flushing the queue once a
+	 * batch has accumulated.
+	 */
+	public synchronized void add(long uid) throws MessagingException {
+		uids.add(uid);
+		if (uids.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	public synchronized void flush() throws MessagingException {
+		if (uids.isEmpty()) {
+			return;
+		}
+		long[] all = new long[uids.size()];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = uids.get(i);
+		}
+		final UIDSet[] set = UIDSet.createUIDSets(all);
+		final boolean targeted = isUidplus();
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol p) throws ProtocolException {
+				Response[] r = p.command("UID STORE " + UIDSet.toString(set)
+						+ " +FLAGS.SILENT (\\Deleted)", null);
+				p.notifyResponseHandlers(r);
+				p.handleResult(r[r.length - 1]);
+				if (targeted) {
+					p.uidexpunge(set);
+				}
+				return null;
+			}
+		});
+		if (!targeted) {
+			folder.expunge();
+		}
+		uids.clear();
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+
+/**
+ * Write-behind for ImapsnDataFile's. Saving a data file only marks it dirty;
+ * the dirty files are written to IMAPSN together once per interval, when the
+ * number of pending saves reaches the batch size, at the end of a batch, on
+ * an explicit flush(), when the client closes, and from a shutdown hook. Any
+ * number of saves of one file between flushes cost a single write. The
+ * owner runs flushIfDue() every interval so that a save followed by no
+ * other activity is still written.
+ * 
+ * A batch belongs to the thread that began it. Files saved by that thread
+ * inside the batch are held apart and written at its endBatch(), or
+ * dropped by abortBatch(); saves from other threads are not affected.
+ * 
+ * An interval of 0 writes every save through immediately.
+ * 
+ * Files are written with this object's lock released, so a writer may take
+ * other locks (the ImapClient's) while other threads query or mark dirty
+ * files here; nothing here calls out while holding the lock.
+ */
+public class FlushScheduler {
+
+	public static long DEFAULT_INTERVAL = 30 * 1000; // 30s
+	public static int DEFAULT_BATCH_SIZE = 100;
+
+	long interval;
+	int batchSize;
+	LinkedHashSet<ImapsnDataFile> dirty = new LinkedHashSet<ImapsnDataFile>();
+	int pendingSaves = 0;
+	Map<Thread, Batch> batches = new HashMap<Thread, Batch>();
+	List<ImapsnDataFile> writing = new ArrayList<ImapsnDataFile>();
+	long lastFlush = System.currentTimeMillis();
+	Thread shutdownHook = null;
+
+	public FlushScheduler() {
+		this(DEFAULT_INTERVAL, DEFAULT_BATCH_SIZE);
+	}
+
+	public FlushScheduler(long interval, int batchSize) {
+		this.interval = interval;
+		this.batchSize = batchSize;
+	}
+
+	// properties
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public synchronized boolean isDirty() {
+		return !dirty.isEmpty() || !writing.isEmpty();
+	}
+
+	/**
+	 * True if any thread has a batch open.
+	 */
+	public synchronized boolean inBatch() {
+		return !batches.isEmpty();
+	}
+
+	/**
+	 * True if <code>file</code> has unwritten saves, in or out of a batch.
+	 */
+	public synchronized boolean isDirty(ImapsnDataFile file) {
+		if (dirty.contains(file) || writing.contains(file)) {
+			return true;
+		}
+		for (Batch batch : batches.values()) {
+			if (batch.files.contains(file)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The files with unwritten saves, in or out of a batch, as of now.
+	 */
+	public synchronized Set<ImapsnDataFile> getDirty() {
+		Set<ImapsnDataFile> files = new LinkedHashSet<ImapsnDataFile>(dirty);
+		files.addAll(writing);
+		for (Batch batch : batches.values()) {
+			files.addAll(batch.files);
+		}
+		return files;
+	}
+
+	// scheduling writes
+
+	/**
+	 * Note that <code>file</code> has changed and write it out if a flush is
+	 * due.
+	 */
+	public void markDirty(ImapsnDataFile file) throws MessagingException {
+		synchronized (this) {
+			Batch batch = batches.get(Thread.currentThread());
+			if (batch != null) {
+				batch.files.add(file);
+				return;
+			}
+			dirty.add(file);
+			pendingSaves++;
+			if (interval > 0 && !isFlushDue()) {
+				return;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Hold this thread's saves until the matching endBatch(). Batches nest.
+	 */
+	public synchronized void beginBatch() {
+		Batch batch = batches.get(Thread.currentThread());
+		if (batch == null) {
+			batch = new Batch();
+			batches.put(Thread.currentThread(), batch);
+		}
+		batch.depth++;
+	}
+
+	/**
+	 * End this thread's batch; the outermost end writes the files saved in
+	 * it, together with any other dirty files.
+	 */
+	public void endBatch() throws MessagingException {
+		synchronized (this) {
+			Batch batch = batches.get(Thread.currentThread());
+			if (batch == null) {
+				return;
+			}
+			if (--batch.depth > 0) {
+				return;
+			}
+			batches.remove(Thread.currentThread());
+			dirty.addAll(batch.files);
+		}
+		flush();
+	}
+
+	/**
+	 * Drop this thread's batch, however deeply nested, without writing the
+	 * files saved in it. They are no longer dirty either, so changes made
+	 * to them before the batch and not yet written are dropped as well.
+	 * Return the dropped files; their in-memory state should be discarded.
+	 */
+	public synchronized Set<ImapsnDataFile> abortBatch() {
+		Batch batch = batches.remove(Thread.currentThread());
+		if (batch == null) {
+			return new LinkedHashSet<ImapsnDataFile>();
+		}
+		dirty.removeAll(batch.files);
+		return batch.files;
+	}
+
+	/**
+	 * Write every dirty file now. A file that fails to write, and those after
+	 * it, stay dirty. Files stay dirty to isDirty() while they are written.
+	 */
+	public void flush() throws MessagingException {
+		List<ImapsnDataFile> files;
+		synchronized (this) {
+			files = new ArrayList<ImapsnDataFile>(dirty);
+			dirty.clear();
+			writing.addAll(files);
+			pendingSaves = 0;
+		}
+		int written = 0;
+		try {
+			for (ImapsnDataFile file : files) {
+				file.write();
+				synchronized (this) {
+					writing.remove(file);
+				}
+				written++;
+			}
+		} finally {
+			synchronized (this) {
+				for (ImapsnDataFile file : files.subList(written, files.size())) {
+					writing.remove(file);
+					dirty.add(file);
+				}
+				if (written == files.size()) {
+					lastFlush = System.currentTimeMillis();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flush if there are dirty files and the interval has passed since the
+	 * last flush. Files held in batches wait for their endBatch(). Return
+	 * true if it flushed.
+	 */
+	public boolean flushIfDue() throws MessagingException {
+		synchronized (this) {
+			if (dirty.isEmpty()
+					|| System.currentTimeMillis() - lastFlush < interval) {
+				return false;
+			}
+		}
+		flush();
+		return true;
+	}
+
+	protected boolean isFlushDue() {
+		return pendingSaves >= batchSize
+				|| System.currentTimeMillis() - lastFlush >= interval;
+	}
+
+	// inner classes
+
+	static class Batch {
+		int depth = 0;
+		Set<ImapsnDataFile> files = new LinkedHashSet<ImapsnDataFile>();
+	}
+
+	// shutdown hook
+
+	/**
+	 * Flush when the JVM exits while the client is still connected.
+	 */
+	public synchronized void installShutdownHook() {
+		if (shutdownHook == null) {
+			shutdownHook = new Thread("imapsn-flush") {
+				public void run() {
+					try {
+						flush();
+					} catch (MessagingException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+	}
+
+	public synchronized void removeShutdownHook() {
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// already shutting down
+			}
+			shutdownHook = null;
+		}
+	}
+
+}
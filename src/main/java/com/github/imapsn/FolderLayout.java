@@ -0,0 +1,70 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Maps IMAPSN paths to folders. Paths whose first segment is one of the
+ * configured prefixes, like <code>/contacts/{id}</code> for "contacts",
+ * are stored in that subfolder of the IMAPSN folder; all other paths are
+ * stored in the IMAPSN folder itself. With no prefixes every path is in
+ * the IMAPSN folder, as in older clients.
+ */
+public class FolderLayout {
+
+	Set<String> prefixes;
+
+	public FolderLayout(Collection<String> prefixes) {
+		this.prefixes = new LinkedHashSet<String>(prefixes);
+	}
+
+	public Set<String> getPrefixes() {
+		return prefixes;
+	}
+
+	public boolean isFlat() {
+		return prefixes.isEmpty();
+	}
+
+	/**
+	 * Return the name of the subfolder of the IMAPSN folder that holds
+	 * <code>path</code>, or null if it is held by the IMAPSN folder itself.
+	 */
+	public String getSubfolder(String path) {
+		int end = path.indexOf('/', 1);
+		if (end == -1) {
+			return null;
+		}
+		String prefix = path.substring(1, end);
+		return prefixes.contains(prefix) ? prefix : null;
+	}
+
+}
@@ -0,0 +1,309 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * On-disk mirror of an IMAPSN folder that survives between sessions. It is
+ * made of two files in the mirror directory:
+ * 
+ * <ul>
+ * <li><code>{folder}.idx</code>: the folder status seen at the last sync, the
+ * path to UID directory, and the location of each mirrored object in the
+ * segment file. Rewritten on save().</li>
+ * <li><code>{folder}.seg</code>: an append-only log of the JSON objects read
+ * from or written to the folder. Each record is the message UID, the length
+ * and the UTF-8 JSON text.</li>
+ * </ul>
+ * 
+ * PathIndex.load(FolderMirror) uses the saved status to resync only what
+ * changed since the last session.
+ */
+public class FolderMirror {
+
+	static int MAGIC = 0x494d534d; // "IMSM"
+	static int VERSION = 1;
+	static int RECORD_HEADER = 12; // uid and length
+
+	File indexFile;
+	File segmentFile;
+	RandomAccessFile segment;
+	FolderStatus status = new FolderStatus();
+	Map<String, Long> uids = new HashMap<String, Long>();
+	Map<Long, long[]> bodies = new HashMap<Long, long[]>(); // uid -> {offset, length}
+
+	public FolderMirror(File dir, String folderName) {
+		String base = folderName.replaceAll("[^A-Za-z0-9._-]", "_");
+		this.indexFile = new File(dir, base + ".idx");
+		this.segmentFile = new File(dir, base + ".seg");
+	}
+
+	// properties
+
+	public synchronized FolderStatus getStatus() {
+		return status;
+	}
+
+	public synchronized void setStatus(FolderStatus status) {
+		this.status = status;
+	}
+
+	/**
+	 * The path to UID directory saved at the end of the last session.
+	 */
+	public synchronized Map<String, Long> getUids() {
+		return new HashMap<String, Long>(uids);
+	}
+
+	// opening and saving
+
+	/**
+	 * Read the index file, if there is one, and open the segment file.
+	 */
+	public synchronized void open() throws IOException {
+		indexFile.getParentFile().mkdirs();
+		if (indexFile.exists()) {
+			try {
+				readIndex();
+			} catch (IOException e) {
+				// unreadable index, start over
+				clear(-1);
+			}
+		}
+		segment = new RandomAccessFile(segmentFile, "rw");
+		if (bodies.isEmpty()) {
+			segment.setLength(0);
+		}
+	}
+
+	/**
+	 * Forget everything, e.g. because UIDVALIDITY changed.
+	 */
+	public synchronized void clear(long uidValidity) throws IOException {
+		uids.clear();
+		bodies.clear();
+		status = new FolderStatus(uidValidity, -1, -1, -1);
+		if (segment != null) {
+			segment.setLength(0);
+		}
+	}
+
+	/**
+	 * Record the current directory of <code>index</code>, and the status it
+	 * is in sync with, and write the index file. Call PathIndex.refresh()
+	 * first so that the status covers the session's writes. Objects no
+	 * longer in the directory are dropped, and the segment file is compacted
+	 * when less than half of it is live.
+	 */
+	public synchronized void save(PathIndex index) throws IOException {
+		uids = index.getUids();
+		if (index.getStatus() != null) {
+			status = index.getStatus();
+		}
+		Set<Long> live = new HashSet<Long>(uids.values());
+		long liveBytes = 0;
+		for (Iterator<Map.Entry<Long, long[]>> it = bodies.entrySet()
+				.iterator(); it.hasNext();) {
+			Map.Entry<Long, long[]> e = it.next();
+			if (live.contains(e.getKey())) {
+				liveBytes += e.getValue()[1] + RECORD_HEADER;
+			} else {
+				it.remove();
+			}
+		}
+		if (segment.length() > 2 * liveBytes) {
+			compact();
+		}
+		segment.getFD().sync();
+		writeIndex();
+	}
+
+	public synchronized void close() throws IOException {
+		if (segment != null) {
+			segment.close();
+			segment = null;
+		}
+	}
+
+	// objects
+
+	/**
+	 * Return the object mirrored for message <code>uid</code>, or null.
+	 */
+	public synchronized JSONObject read(long uid) throws IOException {
+		long[] loc = bodies.get(uid);
+		if (loc == null) {
+			return null;
+		}
+		segment.seek(loc[0]);
+		if (segment.readLong() != uid || segment.readInt() != loc[1]) {
+			// segment and index disagree, e.g. after a crash
+			bodies.remove(uid);
+			return null;
+		}
+		byte[] bytes = new byte[(int) loc[1]];
+		segment.readFully(bytes);
+		try {
+			return new JSONObject(new String(bytes, "UTF8"));
+		} catch (JSONException e) {
+			bodies.remove(uid);
+			return null;
+		}
+	}
+
+	/**
+	 * Append the object held by message <code>uid</code> to the segment.
+	 */
+	public synchronized void write(long uid, JSONObject json)
+			throws IOException {
+		if (bodies.containsKey(uid)) {
+			return;
+		}
+		byte[] bytes = json.toString().getBytes("UTF8");
+		long offset = segment.length();
+		segment.seek(offset);
+		segment.writeLong(uid);
+		segment.writeInt(bytes.length);
+		segment.write(bytes);
+		bodies.put(uid, new long[] { offset, bytes.length });
+	}
+
+	// helpers
+
+	protected void compact() throws IOException {
+		File tmp = new File(segmentFile.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			out.setLength(0);
+			byte[] buf = new byte[8192];
+			for (long[] loc : bodies.values()) {
+				long newOffset = out.length();
+				segment.seek(loc[0]);
+				long left = loc[1] + RECORD_HEADER;
+				while (left > 0) {
+					int n = segment.read(buf, 0, (int) Math.min(buf.length, left));
+					out.write(buf, 0, n);
+					left -= n;
+				}
+				loc[0] = newOffset;
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		segment.close();
+		if (!tmp.renameTo(segmentFile)) {
+			segmentFile.delete();
+			if (!tmp.renameTo(segmentFile)) {
+				throw new IOException("cannot replace " + segmentFile);
+			}
+		}
+		segment = new RandomAccessFile(segmentFile, "rw");
+	}
+
+	protected void readIndex() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("not a mirror index " + indexFile);
+			}
+			status = new FolderStatus(in.readLong(), in.readLong(),
+					in.readInt(), in.readLong());
+			int n = in.readInt();
+			uids.clear();
+			for (int i = 0; i < n; i++) {
+				uids.put(in.readUTF(), in.readLong());
+			}
+			n = in.readInt();
+			bodies.clear();
+			for (int i = 0; i < n; i++) {
+				long uid = in.readLong();
+				bodies.put(uid, new long[] { in.readLong(), in.readLong() });
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	protected void writeIndex() throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				fos));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(status.uidValidity);
+			out.writeLong(status.uidNext);
+			out.writeInt(status.messages);
+			out.writeLong(status.highestModSeq);
+			out.writeInt(uids.size());
+			for (Map.Entry<String, Long> e : uids.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue());
+			}
+			out.writeInt(bodies.size());
+			for (Map.Entry<Long, long[]> e : bodies.entrySet()) {
+				out.writeLong(e.getKey());
+				out.writeLong(e.getValue()[0]);
+				out.writeLong(e.getValue()[1]);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(indexFile)) {
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile)) {
+				throw new FileNotFoundException("cannot replace " + indexFile);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * The numbers a client needs to tell whether a folder has changed since it
+ * last looked: UIDVALIDITY, UIDNEXT, MESSAGES and, on CONDSTORE servers,
+ * HIGHESTMODSEQ. Taken from the folder's SELECT, see fetch().
+ */
+public class FolderStatus {
+
+	static Pattern UIDVALIDITY = Pattern.compile("UIDVALIDITY (\\d+)");
+	static Pattern UIDNEXT = Pattern.compile("UIDNEXT (\\d+)");
+	static Pattern EXISTS = Pattern.compile("\\* (\\d+) EXISTS.*",
+			Pattern.CASE_INSENSITIVE);
+	static Pattern HIGHESTMODSEQ = Pattern.compile("HIGHESTMODSEQ (\\d+)");
+
+	public long uidValidity = -1;
+	public long uidNext = -1;
+	public int messages = -1;
+	public long highestModSeq = -1; // -1 without CONDSTORE
+
+	public FolderStatus() {
+	}
+
+	public FolderStatus(long uidValidity, long uidNext, int messages,
+			long highestModSeq) {
+		this.uidValidity = uidValidity;
+		this.uidNext = uidNext;
+		this.messages = messages;
+		this.highestModSeq = highestModSeq;
+	}
+
+	/**
+	 * True if nothing was appended, expunged or (with CONDSTORE) flagged
+	 * between <code>this</code> and <code>later</code>.
+	 */
+	public boolean isUnchanged(FolderStatus later) {
+		return uidValidity == later.uidValidity && uidNext == later.uidNext
+				&& messages == later.messages
+				&& highestModSeq == later.highestModSeq;
+	}
+
+	/**
+	 * Return the status of <code>folder</code>, which must be open, as its
+	 * SELECT reported it, brought up to date by the EXISTS and EXPUNGE
+	 * responses seen since. STATUS is not used since RFC 3501 (6.3.10) rules
+	 * it out for the selected mailbox.
+	 * 
+	 * JavaMail drops the HIGHESTMODSEQ response code of the SELECT it sends,
+	 * so on CONDSTORE servers the mailbox is selected again here and the
+	 * status is read from that response, see select(). The folder must have
+	 * just been opened or pinged, so that no EXPUNGE is pending on the
+	 * connection.
+	 */
+	public static FolderStatus fetch(IMAPFolder folder)
+			throws MessagingException {
+		if (!((IMAPStore) folder.getStore()).hasCapability("CONDSTORE")) {
+			return new FolderStatus(folder.getUIDValidity(), folder
+					.getUIDNext(), folder.getMessageCount(), -1);
+		}
+		return select(folder);
+	}
+
+	/**
+	 * Select <code>folder</code>, which must be open, again and return the
+	 * status its SELECT reports. Unlike fetch() this is current however long
+	 * the folder has been open, since JavaMail keeps the UIDNEXT of its own
+	 * SELECT. The same rule about pending EXPUNGEs applies.
+	 */
+	public static FolderStatus select(final IMAPFolder folder)
+			throws MessagingException {
+		final FolderStatus status = new FolderStatus();
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol p) throws ProtocolException {
+				Argument args = new Argument();
+				args.writeString(BASE64MailboxEncoder.encode(folder
+						.getFullName()));
+				Response[] r = p.command("SELECT", args);
+				for (int i = 0; i < r.length - 1; i++) {
+					String line = r[i].toString();
+					Matcher exists = EXISTS.matcher(line);
+					if (exists.matches()) {
+						status.messages = Integer.parseInt(exists.group(1));
+					} else if (line.startsWith("* OK [")) {
+						long n;
+						if ((n = match(UIDVALIDITY, line)) != -1) {
+							status.uidValidity = n;
+						} else if ((n = match(UIDNEXT, line)) != -1) {
+							status.uidNext = n;
+						} else if ((n = match(HIGHESTMODSEQ, line)) != -1) {
+							status.highestModSeq = n;
+						}
+					}
+				}
+				// the folder sees the EXISTS again
+				p.notifyResponseHandlers(r);
+				p.handleResult(r[r.length - 1]);
+				return null;
+			}
+		});
+		return status;
+	}
+
+	static long match(Pattern pattern, String line) {
+		Matcher m = pattern.matcher(line);
+		return m.find() ? Long.parseLong(m.group(1)) : -1;
+	}
+
+}
@@ -32,7 +32,6 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.spec.InvalidKeySpecException;
 
-import javax.mail.Flags.Flag;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
@@ -125,7 +124,7 @@ public class Friend {
 				Friend.sendFriendResponse(imap, activity);
 
 				// delete the message
-				mm.setFlag(Flag.DELETED, true);
+				imap.markProcessed(mm);
 			}
 
 		} catch (JSONException e) {
@@ -202,7 +201,7 @@ public class Friend {
 					"UTF8"));
 
 			PersonStatusMap personStatusMap = imap.getPersonStatusMap();
-			if (personStatusMap.getJson().has(activity.getString("inReplyTo"))) {
+			if (personStatusMap.hasEntry(activity.getString("inReplyTo"))) {
 
 				JSONObject friend = activity.getJSONObject("actor");
 
@@ -242,7 +241,7 @@ public class Friend {
 				
 				// delete the message
 				// TODO: what to do with the message when sig fails?
-				mm.setFlag(Flag.DELETED, true);
+				imap.markProcessed(mm);
 			}
 
 		} catch (JSONException e) {
@@ -265,22 +264,29 @@ public class Friend {
 
 	protected static void saveFriend(ImapClientBase imap, JSONObject friend)
 			throws JSONException, MessagingException {
-		// save keyhash
-		KeyMap km = imap.getKeyMap();
-		km.putPublicKey(friend.getString("keyhash"),
-				friend.getString("publicKey"));
-		km.save();
-
-		// save in contacts
-		String path = "/contacts/" + friend.getString("id");
-		imap.put(path, friend);
-
-		// make entry in person-groups.js
-		PersonGroups pg = imap.getPersonGroups();
-		pg.appendToGroup("everybody", friend.getString("id"), friend
-				.getJSONObject("email").getString("value"), friend
-				.getString("displayName"));
-		pg.save();
+		imap.beginTransaction();
+		try {
+			// save keyhash
+			KeyMap km = imap.getKeyMap();
+			km.putPublicKey(friend.getString("keyhash"),
+					friend.getString("publicKey"));
+			km.save();
+
+			// save in contacts
+			String path = "/contacts/" + friend.getString("id");
+			imap.put(path, friend);
+
+			// make entry in person-groups.js
+			PersonGroups pg = imap.getPersonGroups();
+			pg.appendToGroup("everybody", friend.getString("id"), friend
+					.getJSONObject("email").getString("value"), friend
+					.getString("displayName"));
+			pg.save();
+
+			imap.commitTransaction();
+		} finally {
+			imap.abortTransaction();
+		}
 	}
 
 	protected static void sendFriendshipNews(ImapClientBase imap,
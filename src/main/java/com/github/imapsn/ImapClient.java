@@ -30,57 +30,89 @@ package com.github.imapsn;
 
 // http://java.sun.com/products/javamail/javadocs/index.html?com/sun/mail/imap/package-summary.html
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
-import javax.mail.search.SubjectTerm;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
 
 public class ImapClient implements ImapClientBase {
 
+	public static int MAX_HEARTBEAT_BACKOFF = 32; // heartbeats
+
+	/**
+	 * Told about failures in background work: the scheduled tasks, the
+	 * heartbeat, the InboxWatcher and its pipeline, message handlers and
+	 * PatchLog compaction. Each of them retries on its own.
+	 */
+	public interface ErrorListener {
+		public void error(String task, Exception e);
+	}
+
 	ImapsnClient imapsnClient;
-	Properties props;
+	ImapConnectionPool pool;
 	Session session;
 	IMAPStore store;
+	IMAPStore inboundStore;
 	Folder inbox;
+	Map<String, Folder> openFolders = new HashMap<String, Folder>();
 	Folder imapsn;
+	PathIndex pathIndex;
+	FolderLayout layout;
+	Map<String, PathIndex> indexes = new LinkedHashMap<String, PathIndex>();
+	Map<PathIndex, FolderMirror> mirrors = new HashMap<PathIndex, FolderMirror>();
+	ObjectCache objectCache;
+	FlushScheduler flushScheduler;
+	LocalStore localStore;
+	ThreadLocal<TransactionState> transaction = new ThreadLocal<TransactionState>();
+	ScheduledExecutorService scheduler;
 	AccountOwner owner;
 	PersonStatusMap personStatusMap;
 	PersonGroups personGroups;
 	KeyMap keyMap;
+	NewsSegments newsSegments;
+	InboxWatcher inboxWatcher;
+	InboxState inboxState;
+	ProcessedMessages processedMessages = new ProcessedMessages(this);
 
 	boolean isConnected = false;
+	boolean suspended = false; // folders and store given back, see touch()
+	long lastUsed = System.currentTimeMillis();
+	List<ErrorListener> errorListeners = new ArrayList<ErrorListener>();
+	int heartbeatFailures = 0;
+	int heartbeatSkip = 0; // heartbeats left out before the next try
 
 	public ImapClient(ImapsnClient imapsn) {
-		this.props = new Properties();
 		this.imapsnClient = imapsn;
-		if (imapsn.getImapEnableSsl()) {
-			props.setProperty("mail.imap.socketFactory.class",
-					"javax.net.ssl.SSLSocketFactory");
-			// don't fallback to normal IMAP connections on failure.
-			props.setProperty("mail.imap.socketFactory.fallback", "false");
-			// use the simap port for imap/ssl connections.
-			props.setProperty("mail.imap.socketFactory.port",
-					imapsn.getImapPort("imap-port"));
-		}
-
-		// fill props with any information
-		this.session = Session.getDefaultInstance(props, null);
-		try {
-			this.store = (IMAPStore) session.getStore("imap");
-		} catch (NoSuchProviderException e) {
-			e.printStackTrace();
-		}
+		this.objectCache = new ObjectCache(imapsn.getObjectCacheSize());
+		this.flushScheduler = new FlushScheduler(imapsn.getFlushInterval(),
+				imapsn.getFlushBatchSize());
+		this.pool = ImapConnectionPool.getDefault();
+		this.session = pool.getSession(imapsn);
 	}
 
 	// properties
@@ -89,26 +121,142 @@ public class ImapClient implements ImapClientBase {
 		return imapsnClient;
 	}
 
-	public AccountOwner getAccountOwner() {
+	// data files, each read on first use; see preload()
+
+	public synchronized AccountOwner getAccountOwner() {
 		assert (isConnected);
+		if (owner == null) {
+			try {
+				owner = new AccountOwner(this);
+			} catch (Exception e) {
+				throw new RuntimeException("cannot load the account owner", e);
+			}
+		}
 		return owner;
 	}
 
-	public PersonStatusMap getPersonStatusMap() {
+	public synchronized PersonStatusMap getPersonStatusMap() {
 		assert (isConnected);
+		if (personStatusMap == null) {
+			try {
+				personStatusMap = new PersonStatusMap(this);
+			} catch (Exception e) {
+				throw new RuntimeException("cannot load the person status map",
+						e);
+			}
+		}
 		return personStatusMap;
 	}
 
-	public PersonGroups getPersonGroups() {
+	public synchronized PersonGroups getPersonGroups() {
 		assert (isConnected);
+		if (personGroups == null) {
+			try {
+				personGroups = new PersonGroups(this);
+			} catch (Exception e) {
+				throw new RuntimeException("cannot load the person groups", e);
+			}
+		}
 		return personGroups;
 	}
 
-	public KeyMap getKeyMap() {
+	public synchronized KeyMap getKeyMap() {
 		assert (isConnected);
+		if (keyMap == null) {
+			try {
+				keyMap = new KeyMap(this);
+			} catch (Exception e) {
+				throw new RuntimeException("cannot load the key map", e);
+			}
+		}
 		return keyMap;
 	}
 
+	public synchronized InboxState getInboxState() {
+		assert (isConnected);
+		if (inboxState == null) {
+			try {
+				inboxState = new InboxState(this);
+			} catch (Exception e) {
+				throw new RuntimeException("cannot load the inbox state", e);
+			}
+		}
+		return inboxState;
+	}
+
+	public synchronized NewsSegments getNewsSegments() {
+		assert (isConnected);
+		if (newsSegments == null) {
+			try {
+				newsSegments = new NewsSegments(this);
+			} catch (Exception e) {
+				throw new RuntimeException("cannot load the news segments", e);
+			}
+		}
+		return newsSegments;
+	}
+
+	/**
+	 * Read the files behind the data objects that haven't been loaded yet
+	 * into the object cache, all in one UID FETCH, so that a job needing
+	 * several of them doesn't pay a round trip for each.
+	 */
+	public void preload() throws MessagingException, IOException {
+		List<String> paths = new ArrayList<String>();
+		synchronized (this) {
+			if (owner == null) {
+				paths.add(AccountOwner.FILENAME);
+			}
+			if (personStatusMap == null) {
+				paths.add(PersonStatusMap.LEGACY_FILENAME);
+			}
+			if (personGroups == null) {
+				paths.add(PersonGroups.FILENAME);
+			}
+			if (keyMap == null) {
+				paths.add(KeyMap.LEGACY_FILENAME);
+			}
+			if (inboxState == null) {
+				paths.add(InboxState.FILENAME);
+			}
+			if (newsSegments == null) {
+				paths.add(NewsSegments.FILENAME);
+			}
+		}
+		preload(paths);
+	}
+
+	/**
+	 * Read <code>paths</code> into the object cache in one UID FETCH per
+	 * folder.
+	 */
+	public void preload(Collection<String> paths) throws MessagingException,
+			IOException {
+		getAll(paths);
+	}
+
+	/**
+	 * Return this client's InboxWatcher. It is stopped by close().
+	 */
+	public synchronized InboxWatcher getInboxWatcher() {
+		if (inboxWatcher == null) {
+			inboxWatcher = new InboxWatcher(this);
+		}
+		return inboxWatcher;
+	}
+
+	/**
+	 * Note that an incoming message has been handled. It is deleted or
+	 * moved, together with the others, on the next flushProcessed().
+	 */
+	public void markProcessed(Message m) throws MessagingException {
+		processedMessages.add(m);
+	}
+
+	public void flushProcessed() throws MessagingException {
+		processedMessages.flush();
+	}
+
 	public Session getSession() {
 		return this.session;
 	}
@@ -117,75 +265,773 @@ public class ImapClient implements ImapClientBase {
 		return isConnected;
 	}
 
-	public Folder getImapsnFolder() {
+	public synchronized Folder getImapsnFolder() {
+		touchOrFail();
 		return imapsn;
 	}
 
+	/**
+	 * Return the index of the IMAPSN folder itself.
+	 */
+	public synchronized PathIndex getPathIndex() {
+		touchOrFail();
+		return pathIndex;
+	}
+
+	/**
+	 * Return the index of the folder that holds <code>path</code>, opening
+	 * the folder the first time it is needed. See FolderLayout.
+	 */
+	public synchronized PathIndex getPathIndex(String path)
+			throws MessagingException {
+		touch();
+		String sub = layout.getSubfolder(path);
+		if (sub == null) {
+			return pathIndex;
+		}
+		PathIndex ret = indexes.get(sub);
+		if (ret == null) {
+			IMAPFolder folder = pool.leaseFolder(imapsnClient,
+					(IMAPFolder) imapsn.getFolder(sub));
+			ret = openIndex(folder);
+			indexes.put(sub, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * True if the IMAPSN folder holds paths that belong in a subfolder under
+	 * the current FolderLayout, which get() would not find there.
+	 */
+	public synchronized boolean needsMigration() {
+		for (String path : pathIndex.getUids().keySet()) {
+			if (layout.getSubfolder(path) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Move the messages in the IMAPSN folder whose paths belong in a
+	 * subfolder under the current FolderLayout into that subfolder, one COPY
+	 * per subfolder. The originals are expunged once every copy succeeded.
+	 * Return the number of objects moved. Run by connect() when
+	 * "folder-prefixes" has changed.
+	 */
+	public synchronized int migrateLayout() throws MessagingException {
+		Map<String, List<String>> bySub = new LinkedHashMap<String, List<String>>();
+		for (String path : pathIndex.getUids().keySet()) {
+			String sub = layout.getSubfolder(path);
+			if (sub != null) {
+				if (!bySub.containsKey(sub)) {
+					bySub.put(sub, new ArrayList<String>());
+				}
+				bySub.get(sub).add(path);
+			}
+		}
+		int moved = 0;
+		for (List<String> paths : bySub.values()) {
+			PathIndex target = getPathIndex(paths.get(0));
+			long[] uids = new long[paths.size()];
+			for (int i = 0; i < uids.length; i++) {
+				uids[i] = pathIndex.getUid(paths.get(i));
+			}
+			List<Message> found = new ArrayList<Message>();
+			for (Message m : ((IMAPFolder) imapsn).getMessagesByUID(uids)) {
+				if (m != null) {
+					found.add(m);
+				}
+			}
+			imapsn.copyMessages(found.toArray(new Message[found.size()]),
+					target.getFolder());
+			// learn the new UIDs
+			target.load();
+			for (String path : paths) {
+				pathIndex.retire(path);
+				objectCache.remove(path);
+			}
+			moved += paths.size();
+		}
+		flushExpunges();
+		return moved;
+	}
+
+	/**
+	 * Return a loaded index of <code>folder</code>, backed by a mirror if
+	 * "mirror-dir" is set.
+	 */
+	protected PathIndex openIndex(IMAPFolder folder) throws MessagingException {
+		PathIndex ret = new PathIndex(folder, imapsnClient
+				.getExpungeBatchSize());
+		File mirrorDir = imapsnClient.getMirrorDir();
+		if (mirrorDir != null) {
+			FolderMirror mirror = new FolderMirror(mirrorDir, folder
+					.getFullName());
+			try {
+				mirror.open();
+				ret.load(mirror);
+			} catch (IOException e) {
+				throw new MessagingException("cannot open the mirror", e);
+			}
+			mirrors.put(ret, mirror);
+		} else {
+			ret.load();
+		}
+		return ret;
+	}
+
+	public ObjectCache getObjectCache() {
+		return objectCache;
+	}
+
+	public FlushScheduler getFlushScheduler() {
+		return flushScheduler;
+	}
+
+	public LocalStore getLocalStore() {
+		return localStore;
+	}
+
+	/**
+	 * Return the executor that runs this client's background tasks on a
+	 * single daemon thread.
+	 */
+	public synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "imapsn-"
+									+ imapsnClient.getAccountName());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return scheduler;
+	}
+
+	// error reporting
+
+	public synchronized void addErrorListener(ErrorListener listener) {
+		errorListeners.add(listener);
+	}
+
+	public synchronized void removeErrorListener(ErrorListener listener) {
+		errorListeners.remove(listener);
+	}
+
+	/**
+	 * Pass a failure in background work to the ErrorListeners, or print it
+	 * if there are none.
+	 */
+	public void reportError(String task, Exception e) {
+		List<ErrorListener> listeners;
+		synchronized (this) {
+			listeners = new ArrayList<ErrorListener>(errorListeners);
+		}
+		if (listeners.isEmpty()) {
+			System.err.println(imapsnClient.getAccountName() + ": " + task
+					+ " failed");
+			e.printStackTrace();
+		}
+		for (ErrorListener listener : listeners) {
+			listener.error(task, e);
+		}
+	}
+
 	// connections
 
 	public void connect() throws Exception {
-		this.store.connect(imapsnClient.getImapHost(),
-				imapsnClient.getImapUser(), imapsnClient.getImapPassword());
-		inbox = getFolder("INBOX");
-		inbox.open(Folder.READ_WRITE);
-		imapsn = openFolder(imapsnClient.getImapsnFolderName());
-		owner = new AccountOwner(this);
-		personStatusMap = new PersonStatusMap(this);
-		personGroups = new PersonGroups(this);
-		keyMap = new KeyMap(this);
+		this.store = pool.leaseStore(imapsnClient);
 		isConnected = true;
+		suspended = false;
+		lastUsed = System.currentTimeMillis();
+		try {
+			imapsn = openFolder(imapsnClient.getImapsnFolderName());
+			layout = new FolderLayout(imapsnClient.getFolderPrefixes());
+			pathIndex = openIndex((IMAPFolder) imapsn);
+			indexes.clear();
+			if (needsMigration()) {
+				migrateLayout();
+			}
+			File localStoreDir = imapsnClient.getLocalStoreDir();
+			if (localStoreDir != null) {
+				localStore = new LocalStore(localStoreDir);
+				localStore.open();
+				long interval = imapsnClient.getExportInterval();
+				getScheduler().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							localStore.export(ImapClient.this);
+						} catch (Exception e) {
+							// retried on the next run
+							reportError("export", e);
+						}
+					}
+				}, interval, interval, TimeUnit.MILLISECONDS);
+			}
+			long packInterval = imapsnClient.getNewsPackInterval();
+			if (packInterval > 0) {
+				getScheduler().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							getNewsSegments().pack();
+							getNewsSegments().rollup();
+						} catch (Exception e) {
+							// retried on the next run
+							reportError("news packing", e);
+						}
+					}
+				}, packInterval, packInterval, TimeUnit.MILLISECONDS);
+			}
+			long flushInterval = flushScheduler.getInterval();
+			if (flushInterval > 0) {
+				getScheduler().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							flushScheduler.flushIfDue();
+						} catch (MessagingException e) {
+							// the files stay dirty, retried on the next run
+							reportError("flush", e);
+						}
+					}
+				}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+			}
+			long idleTimeout = imapsnClient.getImapIdleTimeout();
+			if (idleTimeout > 0) {
+				getScheduler().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							suspendIfIdle();
+						} catch (MessagingException e) {
+							// tried again on the next run
+							reportError("suspend", e);
+						}
+					}
+				}, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+			}
+			long heartbeat = imapsnClient.getHeartbeatInterval();
+			if (heartbeat > 0) {
+				getScheduler().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						heartbeat();
+					}
+				}, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception e) {
+			abandon();
+			throw e;
+		}
+		flushScheduler.installShutdownHook();
+	}
+
+	/**
+	 * Send a NOOP over each open connection and resume() if one of them has
+	 * dropped. Runs every "heartbeat-interval" on the scheduler. After a
+	 * failed resume the next try waits twice as many heartbeats as the one
+	 * before, up to MAX_HEARTBEAT_BACKOFF; each failure is reported.
+	 */
+	public void heartbeat() {
+		synchronized (this) {
+			if (heartbeatSkip > 0) {
+				heartbeatSkip--;
+				return;
+			}
+		}
+		try {
+			// asked before taking this lock; the scheduler's writers take it
+			Set<ImapsnDataFile> unsaved = flushScheduler.getDirty();
+			synchronized (this) {
+				if (!suspended && !isAlive()) {
+					resume(unsaved);
+				}
+				heartbeatFailures = 0;
+			}
+		} catch (MessagingException e) {
+			synchronized (this) {
+				heartbeatFailures++;
+				heartbeatSkip = Math.min(1 << Math.min(heartbeatFailures - 1,
+						30), MAX_HEARTBEAT_BACKOFF) - 1;
+			}
+			reportError("heartbeat", e);
+		}
+	}
+
+	protected synchronized boolean isAlive() {
+		if (store == null || !store.isConnected()) {
+			return false;
+		}
+		for (Folder folder : openFolders.values()) {
+			if (!isAlive((IMAPFolder) folder)) {
+				return false;
+			}
+		}
+		for (PathIndex index : indexes.values()) {
+			if (!isAlive(index.getFolder())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected boolean isAlive(IMAPFolder folder) {
+		if (!folder.isOpen()) {
+			return false;
+		}
+		try {
+			folder.doCommand(new IMAPFolder.ProtocolCommand() {
+				public Object doCommand(IMAPProtocol p)
+						throws ProtocolException {
+					p.noop();
+					return null;
+				}
+			});
+			return true;
+		} catch (MessagingException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reconnect after a dropped connection without reloading what is in
+	 * memory. The store and any dead folders are leased again, and each
+	 * PathIndex compares the FolderStatus of its reopened folder, plus a
+	 * SEARCH and a FETCH if the folder changed. Data objects stay loaded unless the IMAPSN folder's
+	 * UIDVALIDITY changed or their files were written by someone else in the
+	 * meantime; those are read again on next use.
+	 */
+	public void resume() throws MessagingException {
+		resume(flushScheduler.getDirty());
+	}
+
+	/**
+	 * Resume, keeping the <code>unsaved</code> data files loaded whatever
+	 * changed.
+	 */
+	protected synchronized void resume(Set<ImapsnDataFile> unsaved)
+			throws MessagingException {
+		Map<String, Long> before = getAllUids();
+		if (store == null || !store.isConnected()) {
+			if (store != null) {
+				pool.release(imapsnClient, store);
+			}
+			store = pool.leaseStore(imapsnClient);
+		}
+		for (Map.Entry<String, Folder> e : openFolders.entrySet()) {
+			e.setValue(reopen((IMAPFolder) e.getValue()));
+		}
+		imapsn = openFolders.get(imapsnClient.getImapsnFolderName());
+		if (inbox != null) {
+			inbox = openFolders.get("INBOX");
+		}
+		boolean reload = !resume(pathIndex, (IMAPFolder) imapsn);
+		for (PathIndex index : indexes.values()) {
+			resume(index, reopen(index.getFolder()));
+		}
+
+		Map<String, Long> after = getAllUids();
+		Set<String> changed = new HashSet<String>();
+		for (Map.Entry<String, Long> e : before.entrySet()) {
+			if (!e.getValue().equals(after.get(e.getKey()))) {
+				changed.add(e.getKey());
+			}
+		}
+		for (String path : after.keySet()) {
+			if (!before.containsKey(path)) {
+				changed.add(path);
+			}
+		}
+		if (isStale(owner, unsaved, changed, reload)) {
+			owner = null;
+		}
+		if (isStale(personStatusMap, unsaved, changed, reload)) {
+			personStatusMap = null;
+		}
+		if (isStale(personGroups, unsaved, changed, reload)) {
+			personGroups = null;
+		}
+		if (isStale(keyMap, unsaved, changed, reload)) {
+			keyMap = null;
+		}
+		if (isStale(inboxState, unsaved, changed, reload)) {
+			inboxState = null;
+		}
+		if (isStale(newsSegments, unsaved, changed, reload)) {
+			newsSegments = null;
+		}
+	}
+
+	// idle connections
+
+	/**
+	 * Note that the client is in use, resuming it first if it was
+	 * suspended.
+	 */
+	protected void touch() throws MessagingException {
+		synchronized (this) {
+			lastUsed = System.currentTimeMillis();
+			if (!suspended) {
+				return;
+			}
+		}
+		// asked before taking this lock again; the scheduler's writers take it
+		Set<ImapsnDataFile> unsaved = flushScheduler.getDirty();
+		synchronized (this) {
+			if (suspended) {
+				resume(unsaved);
+				suspended = false;
+			}
+		}
+	}
+
+	protected void touchOrFail() {
+		try {
+			touch();
+		} catch (MessagingException e) {
+			throw new RuntimeException("cannot resume the connection", e);
+		}
+	}
+
+	public synchronized boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Give the open folders back to the pool if the client has not been
+	 * used for "imap-idle-timeout", and the store too unless a running
+	 * InboxWatcher reads through it. Nothing is given back while data files
+	 * have unsaved changes or a transaction is open. Indexes and data
+	 * objects stay in memory and the next use resumes the client, see
+	 * resume(). Return true if it suspended the client.
+	 */
+	public boolean suspendIfIdle() throws MessagingException {
+		// asked before taking this lock; the scheduler's writers take it
+		if (flushScheduler.isDirty() || flushScheduler.inBatch()) {
+			return false;
+		}
+		return suspend();
+	}
+
+	protected synchronized boolean suspend() throws MessagingException {
+		if (suspended || !isConnected
+				|| System.currentTimeMillis() - lastUsed < imapsnClient
+						.getImapIdleTimeout()) {
+			return false;
+		}
+		flushProcessed();
+		flushExpunges();
+		for (PathIndex index : indexes.values()) {
+			pool.release(index.getFolder());
+		}
+		for (Folder folder : openFolders.values()) {
+			pool.release((IMAPFolder) folder);
+		}
+		boolean watching = inboxWatcher != null && inboxWatcher.isRunning();
+		if (!watching && inboundStore != null) {
+			pool.release(imapsnClient, inboundStore);
+			inboundStore = null;
+		}
+		// without an inbound store the watcher reads through this one
+		if (!watching || inboundStore != null) {
+			pool.release(imapsnClient, store);
+			store = null;
+		}
+		suspended = true;
+		return true;
+	}
+
+	/**
+	 * Return <code>folder</code> if it is still usable, else the same folder
+	 * leased again from the current store.
+	 */
+	protected IMAPFolder reopen(IMAPFolder folder) throws MessagingException {
+		if (folder.getStore() == store && isAlive(folder)) {
+			return folder;
+		}
+		try {
+			pool.release(folder);
+		} catch (MessagingException e) {
+			// the connection is gone anyway
+		}
+		return pool.leaseFolder(imapsnClient, (IMAPFolder) store
+				.getFolder(folder.getFullName()));
+	}
+
+	/**
+	 * Resume <code>index</code> on <code>folder</code>, clearing its mirror
+	 * if the UIDVALIDITY changed. Return false in that case.
+	 */
+	protected boolean resume(PathIndex index, IMAPFolder folder)
+			throws MessagingException {
+		if (index.resume(folder)) {
+			return true;
+		}
+		FolderMirror mirror = mirrors.get(index);
+		if (mirror != null) {
+			try {
+				mirror.clear(index.getUidValidity());
+			} catch (IOException e) {
+				throw new MessagingException("cannot clear the mirror", e);
+			}
+		}
+		return false;
+	}
+
+	protected Map<String, Long> getAllUids() {
+		Map<String, Long> ret = pathIndex.getUids();
+		for (PathIndex index : indexes.values()) {
+			ret.putAll(index.getUids());
+		}
+		return ret;
+	}
+
+	/**
+	 * True if <code>file</code> is loaded, is not one of the
+	 * <code>unsaved</code> files and either everything is to be reloaded or
+	 * one of the <code>changed</code> paths belongs to it.
+	 */
+	protected boolean isStale(ImapsnDataFile file,
+			Set<ImapsnDataFile> unsaved, Set<String> changed, boolean all) {
+		if (file == null || unsaved.contains(file)) {
+			return false;
+		}
+		if (all) {
+			return true;
+		}
+		for (String path : changed) {
+			if (path.startsWith(file.getFilename())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write any data files with pending saves and expunge replaced messages.
+	 */
+	public void flush() throws MessagingException {
+		flushScheduler.flush();
+		flushProcessed();
+		flushExpunges();
+	}
+
+	protected synchronized void flushExpunges() throws MessagingException {
+		pathIndex.getExpungeQueue().flush();
+		for (PathIndex index : indexes.values()) {
+			index.getExpungeQueue().flush();
+		}
 	}
 
 	public void close() throws MessagingException {
-		if (imapsn.isOpen()) {
-			imapsn.close(true);
+		if (inboxWatcher != null) {
+			inboxWatcher.stop();
+		}
+		flush();
+		flushScheduler.removeShutdownHook();
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		if (localStore != null) {
+			try {
+				localStore.export(this);
+				localStore.close();
+			} catch (IOException e) {
+				throw new MessagingException("cannot export the local store", e);
+			}
+			localStore = null;
+			flushExpunges();
 		}
-		if (inbox.isOpen()) {
-			inbox.close(true);
+		release();
+		synchronized (this) {
+			suspended = false;
+			// reloaded after the next connect()
+			owner = null;
+			personStatusMap = null;
+			personGroups = null;
+			keyMap = null;
+			inboxState = null;
+			newsSegments = null;
 		}
+		isConnected = false;
+	}
 
-		this.store.close();
+	/**
+	 * Undo a connect() that failed part way: stop the tasks it scheduled
+	 * and give back the connections it leased. Nothing is flushed.
+	 */
+	protected void abandon() {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		if (localStore != null) {
+			try {
+				localStore.close();
+			} catch (IOException e) {
+				// the log is replayed on the next open
+			}
+			localStore = null;
+		}
+		try {
+			release();
+		} catch (MessagingException e) {
+			// the connections are dropped anyway
+		}
 		isConnected = false;
 	}
 
+	/**
+	 * Save the mirrors and give every folder and store back to the pool.
+	 */
+	protected void release() throws MessagingException {
+		for (Map.Entry<PathIndex, FolderMirror> e : mirrors.entrySet()) {
+			try {
+				// else the next load sees this session's writes as changes
+				e.getKey().refresh();
+			} catch (MessagingException ex) {
+				reportError("refreshing " + e.getKey().getFolder().getFullName(),
+						ex);
+			}
+			try {
+				e.getValue().save(e.getKey());
+				e.getValue().close();
+			} catch (IOException ex) {
+				// the mirror is rebuilt from the server next time
+				ex.printStackTrace();
+			}
+		}
+		mirrors.clear();
+		for (PathIndex index : indexes.values()) {
+			pool.release(index.getFolder());
+		}
+		indexes.clear();
+		for (Folder folder : openFolders.values()) {
+			pool.release((IMAPFolder) folder);
+		}
+		openFolders.clear();
+		inbox = null;
+		synchronized (this) {
+			if (inboundStore != null) {
+				pool.release(imapsnClient, inboundStore);
+				inboundStore = null;
+			}
+		}
+		if (store != null) {
+			pool.release(imapsnClient, store);
+			store = null;
+		}
+	}
+
 	// messages and folders
 
 	public MimeMessage getNewMessage() {
 		return new MimeMessage(this.session);
 	}
 
-	public Folder getFolder(String name) throws MessagingException {
+	public synchronized Folder getFolder(String name)
+			throws MessagingException {
+		touch();
 		return this.store.getFolder(name);
 	}
 
 	/**
-	 * Open and return the folder, creating it if it doesn't exist.
+	 * Open and return the folder, creating it if it doesn't exist. The
+	 * folder is leased from the ImapConnectionPool on first use and stays
+	 * open until close() or until the client is suspended.
 	 */
-	public Folder openFolder(String name) throws MessagingException {
+	public synchronized Folder openFolder(String name)
+			throws MessagingException {
 		assert isConnected();
-		Folder folder = inbox.getFolder(name);
-		boolean success = false;
-		if (!folder.exists()) {
-			success = folder.create(Folder.HOLDS_MESSAGES);
-		} else {
-			success = true;
-		}
-		if (success) {
-			folder.open(Folder.READ_WRITE);
-		} else {
-			throw new MessagingException("Cannot open the folder " + name);
+		touch();
+		Folder folder = openFolders.get(name);
+		if (folder == null) {
+			folder = pool.leaseFolder(imapsnClient, (IMAPFolder) store
+					.getFolder("INBOX").getFolder(name));
+			openFolders.put(name, folder);
 		}
 		return folder;
 	}
 
+	/**
+	 * Return the open INBOX, leasing it on first use.
+	 */
+	public synchronized Folder getInbox() throws MessagingException {
+		touch();
+		if (inbox == null) {
+			inbox = pool.leaseFolder(imapsnClient, store, "INBOX");
+			openFolders.put("INBOX", inbox);
+		}
+		return inbox;
+	}
+
+	/**
+	 * Return the store incoming mail is read from: with an
+	 * "inbound-queue-size" a second store leased on first use, so reading
+	 * the inbox never waits behind IMAPSN writes; otherwise the client's
+	 * store.
+	 */
+	protected synchronized IMAPStore getInboundStore()
+			throws MessagingException {
+		touch();
+		if (imapsnClient.getInboundQueueSize() <= 0) {
+			return store;
+		}
+		if (inboundStore == null) {
+			inboundStore = pool.leaseStore(imapsnClient);
+		}
+		return inboundStore;
+	}
+
+	/**
+	 * Open the owner's new-message folder on a connection of its own, for
+	 * an InboxWatcher. Give it back with releaseFolder().
+	 */
+	public IMAPFolder leaseNewMessageFolder() throws MessagingException {
+		String name = getAccountOwner().getNewMessageFolder();
+		Folder folder = getInboundStore().getFolder("INBOX");
+		if (!name.equals("INBOX")) {
+			folder = folder.getFolder(name);
+		}
+		return pool.leaseFolder(imapsnClient, (IMAPFolder) folder);
+	}
+
+	/**
+	 * Open the folder with the full name <code>name</code> on a connection
+	 * of its own. Give it back with releaseFolder().
+	 */
+	public IMAPFolder leaseFolder(String name) throws MessagingException {
+		return pool.leaseFolder(imapsnClient, (IMAPFolder) getFolder(name));
+	}
+
+	public void releaseFolder(IMAPFolder folder) throws MessagingException {
+		pool.release(folder);
+	}
+
 	public Message[] getNewMessages() throws MessagingException {
 		return getNewMessages(null);
 	}
+
+	/**
+	 * Return the IMAPSN messages of <code>messageType</code>, all types if
+	 * null, above the mark kept for it in the InboxState. The mark only
+	 * moves with commitProcessed(), so messages are returned again until
+	 * they have been handled: a caller must pass each message it has handled
+	 * to commitProcessed() with the same <code>messageType</code>, or every
+	 * call rescans from the first message. MessageRouter does this for the
+	 * null reader.
+	 */
 	public Message[] getNewMessages(String messageType) throws MessagingException {
-		String folderName = owner.getNewMessageFolder();
+		String folderName = getAccountOwner().getNewMessageFolder();
 		Folder folder;
 		if (folderName.equals("INBOX")) {
-			folder = inbox;
+			folder = getInbox();
 		} else {
 			folder = openFolder(folderName);
 		}
@@ -195,33 +1041,404 @@ public class ImapClient implements ImapClientBase {
 		} else {
 			searchString = "[IMAPSN]";
 		}
-		return folder.search(new SubjectTerm(searchString));
+		IMAPFolder f = (IMAPFolder) folder;
+		String reader = (messageType == null) ? "*" : messageType;
+		long uidValidity = f.getUIDValidity();
+		InboxState inboxState = getInboxState();
+		long since = inboxState.getLastUid(f.getFullName(), uidValidity,
+				reader);
+		long[] uids = MimeUtil.searchSubject(f, since + 1, searchString);
+		List<Message> ret = new ArrayList<Message>();
+		for (Message m : f.getMessagesByUID(uids)) {
+			if (m != null) {
+				ret.add(m);
+			}
+		}
+		return ret.toArray(new Message[ret.size()]);
+	}
+
+	/**
+	 * Move the mark of getNewMessages(messageType) up to <code>m</code>,
+	 * once it and every message before it have been processed.
+	 */
+	public void commitProcessed(String messageType, Message m)
+			throws MessagingException {
+		IMAPFolder f = (IMAPFolder) m.getFolder();
+		String reader = (messageType == null) ? "*" : messageType;
+		long uidValidity = f.getUIDValidity();
+		long uid = f.getUID(m);
+		InboxState inboxState = getInboxState();
+		if (uid > inboxState.getLastUid(f.getFullName(), uidValidity, reader)) {
+			inboxState.setLastUid(f.getFullName(), uidValidity, reader, uid);
+			inboxState.save();
+		}
+	}
+
+	// transactions
+
+	/**
+	 * Group this thread's puts and deletes, and the data files saved before
+	 * commitTransaction(), into one transaction. With a local store the
+	 * transaction is committed to its log atomically; without one writes go
+	 * straight to IMAPSN and the transaction only marks a FlushScheduler
+	 * batch. Joins the current transaction if one is open.
+	 */
+	public void beginTransaction() {
+		if (transaction.get() == null) {
+			TransactionState state = new TransactionState();
+			if (localStore != null) {
+				state.tx = localStore.begin();
+			}
+			transaction.set(state);
+			flushScheduler.beginBatch();
+		}
+	}
+
+	public void commitTransaction() throws MessagingException {
+		TransactionState state = transaction.get();
+		if (state == null) {
+			return;
+		}
+		try {
+			// dirty data files are written into the transaction
+			flushScheduler.endBatch();
+			if (state.tx != null) {
+				state.tx.commit();
+			}
+		} catch (IOException e) {
+			throw new MessagingException("cannot commit to the local store", e);
+		} finally {
+			transaction.remove();
+		}
+	}
+
+	/**
+	 * Discard the current transaction unless it was committed. Data files
+	 * saved in it are not written; they are unloaded so the next use reads
+	 * them again from the store.
+	 */
+	public void abortTransaction() throws MessagingException {
+		if (transaction.get() != null) {
+			transaction.remove();
+			unload(flushScheduler.abortBatch());
+		}
+	}
+
+	protected synchronized void unload(Set<ImapsnDataFile> files) {
+		if (files.contains(owner)) {
+			owner = null;
+		}
+		if (files.contains(personStatusMap)) {
+			personStatusMap = null;
+		}
+		if (files.contains(personGroups)) {
+			personGroups = null;
+		}
+		if (files.contains(keyMap)) {
+			keyMap = null;
+		}
+		if (files.contains(inboxState)) {
+			inboxState = null;
+		}
+		if (files.contains(newsSegments)) {
+			newsSegments = null;
+		}
 	}
 
 	// storage interface
 
 	public void put(String path, JSONObject json, String text)
 			throws MessagingException {
-		String[] parts = path.split("/");
-		String fileName = parts[parts.length - 1];
-		MimeUtil.saveJsonData(this, imapsn, json, path, fileName);
+		if (localStore != null) {
+			TransactionState state = transaction.get();
+			try {
+				if (state != null && state.tx != null) {
+					state.tx.put(path, json);
+				} else {
+					LocalStore.Transaction tx = localStore.begin();
+					tx.put(path, json);
+					tx.commit();
+				}
+			} catch (IOException e) {
+				throw new MessagingException("cannot commit to the local store",
+						e);
+			}
+		} else {
+			putThrough(path, json);
+		}
 	}
 
 	public void put(String path, JSONObject json) throws MessagingException {
 		put(path, json, "");
 	}
 
+	public void delete(String path) throws MessagingException {
+		if (localStore != null) {
+			TransactionState state = transaction.get();
+			try {
+				if (state != null && state.tx != null) {
+					state.tx.delete(path);
+				} else {
+					LocalStore.Transaction tx = localStore.begin();
+					tx.delete(path);
+					tx.commit();
+				}
+			} catch (IOException e) {
+				throw new MessagingException("cannot commit to the local store",
+						e);
+			}
+		} else {
+			deleteThrough(path);
+		}
+	}
+
+	/**
+	 * Put every object in <code>data</code>, keyed by path. Without a local
+	 * store they are sent to IMAPSN together, see putAllThrough(). Inside an
+	 * open transaction the puts join it and are committed with it.
+	 */
+	public void putAll(Map<String, JSONObject> data) throws MessagingException {
+		if (localStore != null) {
+			boolean own = transaction.get() == null;
+			if (own) {
+				beginTransaction();
+			}
+			try {
+				for (Map.Entry<String, JSONObject> e : data.entrySet()) {
+					put(e.getKey(), e.getValue());
+				}
+				if (own) {
+					commitTransaction();
+				}
+			} finally {
+				if (own) {
+					abortTransaction();
+				}
+			}
+		} else {
+			putAllThrough(data);
+		}
+	}
+
+	/**
+	 * Write every object in <code>data</code> to the IMAPSN folder in one
+	 * MULTIAPPEND, bypassing the local store.
+	 */
+	public synchronized void putAllThrough(Map<String, JSONObject> data)
+			throws MessagingException {
+		Map<PathIndex, Map<String, JSONObject>> byFolder = new LinkedHashMap<PathIndex, Map<String, JSONObject>>();
+		for (Map.Entry<String, JSONObject> e : data.entrySet()) {
+			PathIndex index = getPathIndex(e.getKey());
+			if (!byFolder.containsKey(index)) {
+				byFolder.put(index, new LinkedHashMap<String, JSONObject>());
+			}
+			byFolder.get(index).put(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<PathIndex, Map<String, JSONObject>> f : byFolder
+				.entrySet()) {
+			PathIndex index = f.getKey();
+			MimeUtil.saveJsonData(this, index, f.getValue());
+			for (Map.Entry<String, JSONObject> e : f.getValue().entrySet()) {
+				cache(index, e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Write <code>json</code> to the IMAPSN folder, bypassing the local store.
+	 */
+	public synchronized void putThrough(String path, JSONObject json)
+			throws MessagingException {
+		String[] parts = path.split("/");
+		String fileName = parts[parts.length - 1];
+		PathIndex index = getPathIndex(path);
+		MimeUtil.saveJsonData(this, index.getFolder(), index, json, path,
+				fileName);
+		cache(index, path, json);
+	}
+
+	/**
+	 * Cache and mirror <code>json</code> under the UID <code>path</code> was
+	 * just written to.
+	 */
+	protected void cache(PathIndex index, String path, JSONObject json) {
+		long uid = index.getUid(path);
+		if (uid != -1) {
+			objectCache.put(path, uid, index.getUidValidity(), json);
+			mirror(index, uid, json);
+		} else {
+			objectCache.remove(path);
+		}
+	}
+
+	/**
+	 * Delete <code>path</code> from the IMAPSN folder, bypassing the local
+	 * store.
+	 */
+	public synchronized void deleteThrough(String path)
+			throws MessagingException {
+		getPathIndex(path).retire(path);
+		objectCache.remove(path);
+	}
+
 	public JSONObject get(String path) throws MessagingException, IOException {
 		JSONObject ret = null;
-		MimeMessage mm = MimeUtil.getFolderMessage(imapsn, path);
+		if (isLocal(path)) {
+			return getLocal(path);
+		}
+		PathIndex index = getPathIndex(path);
+		long uid = index.getUid(path);
+		if (uid == -1) {
+			return null;
+		}
+		ret = getCached(index, path, uid);
+		if (ret != null) {
+			return ret;
+		}
+		MimeMessage mm = index.getMessage(path);
 		if (mm != null) {
-			String[] parts = path.split("/");
-			String fileName = parts[parts.length - 1];
-			try {
-				ret = MimeUtil.getAttachedJson(mm, fileName);
-			} catch (JSONException e) {
+			ret = readJson(index, path, uid, mm);
+		}
+		return ret;
+	}
+
+	/**
+	 * Return the objects at <code>paths</code>, keyed by path and leaving out
+	 * paths that don't exist. Objects not held locally are fetched from
+	 * IMAPSN in one UID FETCH.
+	 */
+	public Map<String, JSONObject> getAll(Collection<String> paths)
+			throws MessagingException, IOException {
+		Map<String, JSONObject> ret = new LinkedHashMap<String, JSONObject>();
+		Map<PathIndex, Map<Long, String>> missing = new LinkedHashMap<PathIndex, Map<Long, String>>();
+		for (String path : paths) {
+			JSONObject json = null;
+			if (isLocal(path)) {
+				json = getLocal(path);
+			} else {
+				PathIndex index = getPathIndex(path);
+				long uid = index.getUid(path);
+				if (uid == -1) {
+					continue;
+				}
+				json = getCached(index, path, uid);
+				if (json == null) {
+					if (!missing.containsKey(index)) {
+						missing.put(index, new LinkedHashMap<Long, String>());
+					}
+					missing.get(index).put(uid, path);
+				}
+			}
+			// keep the caller's order
+			ret.put(path, json);
+		}
+
+		// one UID FETCH per folder
+		for (Map.Entry<PathIndex, Map<Long, String>> f : missing.entrySet()) {
+			PathIndex index = f.getKey();
+			long[] uids = new long[f.getValue().size()];
+			int i = 0;
+			for (Long uid : f.getValue().keySet()) {
+				uids[i++] = uid;
+			}
+			Map<Long, MimeMessage> msgs = MimeUtil.fetchMessages(index
+					.getFolder(), session, uids);
+			for (Map.Entry<Long, String> e : f.getValue().entrySet()) {
+				MimeMessage mm = msgs.get(e.getKey());
+				if (mm != null) {
+					ret.put(e.getValue(), readJson(index, e.getValue(), e
+							.getKey(), mm));
+				}
+			}
+		}
+
+		Iterator<JSONObject> it = ret.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() == null) {
+				it.remove();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Return true if the current value of <code>path</code> is in this
+	 * thread's transaction or in the local store.
+	 */
+	protected boolean isLocal(String path) {
+		if (localStore == null) {
+			return false;
+		}
+		TransactionState state = transaction.get();
+		if (state != null && state.tx != null && state.tx.contains(path)) {
+			return true;
+		}
+		return localStore.contains(path);
+	}
+
+	protected JSONObject getLocal(String path) {
+		TransactionState state = transaction.get();
+		if (state != null && state.tx != null && state.tx.contains(path)) {
+			return state.tx.get(path);
+		}
+		return localStore.get(path);
+	}
+
+	/**
+	 * Return the object at <code>uid</code> from the object cache or the
+	 * mirror, or null if it has to be read from IMAPSN.
+	 */
+	protected JSONObject getCached(PathIndex index, String path, long uid)
+			throws IOException {
+		JSONObject ret = objectCache.get(path, uid, index.getUidValidity());
+		FolderMirror mirror = mirrors.get(index);
+		if (ret == null && mirror != null) {
+			ret = mirror.read(uid);
+			if (ret != null) {
+				objectCache.put(path, uid, index.getUidValidity(), ret);
 			}
 		}
 		return ret;
 	}
+
+	/**
+	 * Read the object attached to <code>mm</code> and cache it.
+	 */
+	protected JSONObject readJson(PathIndex index, String path, long uid,
+			MimeMessage mm)
+			throws MessagingException, IOException {
+		JSONObject ret = null;
+		String[] parts = path.split("/");
+		String fileName = parts[parts.length - 1];
+		try {
+			ret = MimeUtil.getAttachedJson(mm, fileName);
+		} catch (JSONException e) {
+		}
+		if (ret != null) {
+			objectCache.put(path, uid, index.getUidValidity(), ret);
+			mirror(index, uid, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Copy an object to the local mirror, if there is one.
+	 */
+	protected void mirror(PathIndex index, long uid, JSONObject json) {
+		FolderMirror mirror = mirrors.get(index);
+		if (mirror != null) {
+			try {
+				mirror.write(uid, json);
+			} catch (IOException e) {
+				// the mirror only saves a download, carry on without it
+				reportError("mirror write", e);
+			}
+		}
+	}
+
+	// inner classes
+
+	static class TransactionState {
+		LocalStore.Transaction tx; // null without a local store
+	}
 }
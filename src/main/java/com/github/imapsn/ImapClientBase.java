@@ -29,6 +29,9 @@ or implied, of Jason Kantz.
 package com.github.imapsn;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.mail.Folder;
 import javax.mail.Message;
@@ -50,6 +53,20 @@ public interface ImapClientBase {
 
 	public KeyMap getKeyMap();
 
+	public NewsSegments getNewsSegments();
+
+	public InboxState getInboxState();
+
+	public void markProcessed(Message m) throws MessagingException;
+
+	public void flushProcessed() throws MessagingException;
+
+	public void reportError(String task, Exception e);
+
+	public FlushScheduler getFlushScheduler();
+
+	public ScheduledExecutorService getScheduler();
+
 	public Message getNewMessage();
 
 	public Message[] getNewMessages(String messageType)
@@ -57,6 +74,9 @@ public interface ImapClientBase {
 
 	public Message[] getNewMessages() throws MessagingException;
 
+	public void commitProcessed(String messageType, Message m)
+			throws MessagingException;
+
 	public void connect() throws Exception;
 
 	public void close() throws MessagingException;
@@ -74,4 +94,17 @@ public interface ImapClientBase {
 
 	public void put(String path, JSONObject json) throws MessagingException;
 
+	public void putAll(Map<String, JSONObject> data) throws MessagingException;
+
+	public Map<String, JSONObject> getAll(Collection<String> paths)
+			throws MessagingException, IOException;
+
+	public void delete(String path) throws MessagingException;
+
+	public void beginTransaction();
+
+	public void commitTransaction() throws MessagingException;
+
+	public void abortTransaction() throws MessagingException;
+
 }
@@ -0,0 +1,450 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Session;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * IMAP connections shared by all the accounts of a JVM. There is one
+ * Session per host, port and user. Connected stores are leased to
+ * ImapClients and kept for reuse when they are returned, until they have
+ * been idle for "imap-idle-timeout" seconds. Every store and every open
+ * folder holds one of its server's "imap-max-connections" permits, shared
+ * by all the users of that host and port. With "imap-max-user-connections"
+ * it also holds one of its user's, for servers that limit each login
+ * further. A lease that finds none free first closes idle stores counted
+ * against the exhausted limit, then waits up to "imap-lease-timeout"
+ * seconds. ImapClients give their folders back once they have been unused
+ * for "imap-idle-timeout", see ImapClient.suspendIfIdle().
+ * 
+ * With "imap-compress" the Session's sockets come from a
+ * CompressingSocketFactory, and every store and folder leased turns on
+ * COMPRESS=DEFLATE (RFC 4978) if the server offers it.
+ */
+public class ImapConnectionPool {
+
+	public static int DEFAULT_MAX_CONNECTIONS = 10;
+	public static long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000; // 5m
+	public static long DEFAULT_LEASE_TIMEOUT = 60 * 1000; // 1m
+
+	static ImapConnectionPool defaultPool = null;
+
+	Map<String, Server> servers = new HashMap<String, Server>();
+	Map<String, Session> sessions = new HashMap<String, Session>();
+	Map<String, LinkedList<Idle>> idle = new HashMap<String, LinkedList<Idle>>();
+	Map<IMAPFolder, Server> leasedFolders = new HashMap<IMAPFolder, Server>();
+	ScheduledExecutorService evictor = null;
+
+	/**
+	 * Return the pool shared by every ImapClient in this JVM.
+	 */
+	public static synchronized ImapConnectionPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new ImapConnectionPool();
+		}
+		return defaultPool;
+	}
+
+	// properties
+
+	/**
+	 * Return the number of connections open for the server of
+	 * <code>client</code>, leased or idle, by any user.
+	 */
+	public int getOpenConnections(ImapsnClient client) {
+		Server server = getServer(client);
+		if (server.parent != null) {
+			server = server.parent;
+		}
+		return server.maxConnections - server.permits.availablePermits();
+	}
+
+	public synchronized int getIdleCount() {
+		int ret = 0;
+		for (LinkedList<Idle> list : idle.values()) {
+			ret += list.size();
+		}
+		return ret;
+	}
+
+	// sessions
+
+	/**
+	 * Return the Session shared by the accounts of <code>client</code>'s
+	 * host, port and user.
+	 */
+	public synchronized Session getSession(ImapsnClient client) {
+		String key = getKey(client);
+		Session ret = sessions.get(key);
+		if (ret == null) {
+			Properties props = new Properties();
+			if (client.getImapCompress()) {
+				Class<?> factory = client.getImapEnableSsl()
+						? CompressingSocketFactory.Ssl.class
+						: CompressingSocketFactory.class;
+				props.setProperty("mail.imap.socketFactory.class", factory
+						.getName());
+				props.setProperty("mail.imap.socketFactory.fallback", "false");
+				props.setProperty("mail.imap.socketFactory.port", client
+						.getImapPort("imap-port"));
+				// folders open their own sockets, inside a lease
+				props.setProperty("mail.imap.separatestoreconnection", "true");
+			} else if (client.getImapEnableSsl()) {
+				props.setProperty("mail.imap.socketFactory.class",
+						"javax.net.ssl.SSLSocketFactory");
+				// don't fallback to normal IMAP connections on failure.
+				props.setProperty("mail.imap.socketFactory.fallback", "false");
+				// use the simap port for imap/ssl connections.
+				props.setProperty("mail.imap.socketFactory.port", client
+						.getImapPort("imap-port"));
+			}
+			ret = Session.getInstance(props, null);
+			sessions.put(key, ret);
+		}
+		return ret;
+	}
+
+	// leasing
+
+	/**
+	 * Return a connected store for <code>client</code>, reusing an idle one
+	 * if there is one. Give it back with release().
+	 */
+	public IMAPStore leaseStore(ImapsnClient client) throws MessagingException {
+		String key = getKey(client);
+		synchronized (this) {
+			LinkedList<Idle> list = idle.get(key);
+			while (list != null && !list.isEmpty()) {
+				IMAPStore store = list.removeFirst().store;
+				if (store.isConnected()) {
+					return store;
+				}
+				getServer(client).release();
+			}
+		}
+
+		Server server = getServer(client);
+		acquire(server, client);
+		CompressingSocketFactory.countInto(client.getByteCounters());
+		try {
+			IMAPStore store = (IMAPStore) getSession(client).getStore("imap");
+			store.connect(client.getImapHost(), client.getImapUser(), client
+					.getImapPassword());
+			if (client.getImapCompress()) {
+				compress((IMAPFolder) store.getDefaultFolder());
+			}
+			return store;
+		} catch (NoSuchProviderException e) {
+			server.release();
+			throw new RuntimeException("bug: no imap provider", e);
+		} catch (MessagingException e) {
+			server.release();
+			throw e;
+		} finally {
+			CompressingSocketFactory.clear();
+		}
+	}
+
+	/**
+	 * Return a store leased with leaseStore(). It is kept open for reuse
+	 * unless it has disconnected.
+	 */
+	public void release(ImapsnClient client, IMAPStore store) {
+		if (store.isConnected()) {
+			synchronized (this) {
+				String key = getKey(client);
+				LinkedList<Idle> list = idle.get(key);
+				if (list == null) {
+					list = new LinkedList<Idle>();
+					idle.put(key, list);
+				}
+				list.addFirst(new Idle(store, getServer(client)));
+				startEvictor();
+			}
+		} else {
+			getServer(client).release();
+		}
+	}
+
+	/**
+	 * Open the folder <code>name</code> of a leased store read-write, creating
+	 * it if it doesn't exist. The folder takes its own connection; give it
+	 * back with release().
+	 */
+	public IMAPFolder leaseFolder(ImapsnClient client, IMAPStore store,
+			String name) throws MessagingException {
+		return leaseFolder(client, (IMAPFolder) store.getFolder(name));
+	}
+
+	public IMAPFolder leaseFolder(ImapsnClient client, IMAPFolder folder)
+			throws MessagingException {
+		Server server = getServer(client);
+		acquire(server, client);
+		CompressingSocketFactory.countInto(client.getByteCounters());
+		try {
+			if (!folder.exists() && !folder.create(Folder.HOLDS_MESSAGES)) {
+				throw new MessagingException("Cannot open the folder "
+						+ folder.getFullName());
+			}
+			folder.open(Folder.READ_WRITE);
+			if (client.getImapCompress()) {
+				compress(folder);
+			}
+		} catch (MessagingException e) {
+			server.release();
+			throw e;
+		} finally {
+			CompressingSocketFactory.clear();
+		}
+		synchronized (this) {
+			leasedFolders.put(folder, server);
+		}
+		return folder;
+	}
+
+	/**
+	 * Close a folder opened with leaseFolder(), expunging deleted messages.
+	 */
+	public void release(IMAPFolder folder) throws MessagingException {
+		Server server;
+		synchronized (this) {
+			server = leasedFolders.remove(folder);
+		}
+		if (server == null) {
+			return;
+		}
+		try {
+			if (folder.isOpen()) {
+				folder.close(true);
+			}
+		} finally {
+			server.release();
+		}
+	}
+
+	/**
+	 * Turn on COMPRESS=DEFLATE for the connection <code>folder</code> runs
+	 * its commands on, the store's own for a closed folder. A NO, e.g.
+	 * because the connection is compressed already, is ignored.
+	 */
+	protected void compress(IMAPFolder folder) throws MessagingException {
+		if (!((IMAPStore) folder.getStore()).hasCapability("COMPRESS=DEFLATE")) {
+			return;
+		}
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol p) throws ProtocolException {
+				Response[] r = p.command("COMPRESS DEFLATE", null);
+				p.notifyResponseHandlers(r);
+				return null;
+			}
+		});
+	}
+
+	// eviction
+
+	/**
+	 * Close the stores that have been idle longer than their server's idle
+	 * timeout. Return the number closed.
+	 */
+	public int evictIdle() {
+		return evict(null, System.currentTimeMillis());
+	}
+
+	/**
+	 * Close idle stores of <code>server</code> (any if null) that
+	 * were returned before their idle timeout counted back from
+	 * <code>now</code>; a <code>now</code> of Long.MAX_VALUE closes all of
+	 * them.
+	 */
+	protected int evict(Server server, long now) {
+		List<Idle> closing = new ArrayList<Idle>();
+		synchronized (this) {
+			for (LinkedList<Idle> list : idle.values()) {
+				for (Iterator<Idle> it = list.iterator(); it.hasNext();) {
+					Idle i = it.next();
+					if ((server == null || i.server == server
+							|| i.server.parent == server)
+							&& (now == Long.MAX_VALUE || now - i.since >= i.server.idleTimeout)) {
+						closing.add(i);
+						it.remove();
+					}
+				}
+			}
+		}
+		for (Idle i : closing) {
+			try {
+				i.store.close();
+			} catch (MessagingException e) {
+				// closed anyway
+			}
+			i.server.release();
+		}
+		return closing.size();
+	}
+
+	/**
+	 * Take a permit of <code>server</code>, and of the server it is nested
+	 * in if it is a per-user limit.
+	 */
+	protected void acquire(Server server, ImapsnClient client)
+			throws MessagingException {
+		acquireOne(server, client);
+		if (server.parent != null) {
+			try {
+				acquireOne(server.parent, client);
+			} catch (MessagingException e) {
+				server.permits.release();
+				throw e;
+			}
+		}
+	}
+
+	protected void acquireOne(Server server, ImapsnClient client)
+			throws MessagingException {
+		if (server.permits.tryAcquire()) {
+			return;
+		}
+		evict(server, Long.MAX_VALUE);
+		try {
+			if (server.permits.tryAcquire(client.getImapLeaseTimeout(),
+					TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		throw new MessagingException("too many connections to "
+				+ client.getImapHost());
+	}
+
+	protected synchronized void startEvictor() {
+		if (evictor == null) {
+			evictor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "imapsn-pool-evictor");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					evictIdle();
+				}
+			}, 30, 30, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Return the permits of <code>client</code>'s server, or of its user
+	 * nested in the server's if the account sets a per-user limit.
+	 */
+	protected synchronized Server getServer(ImapsnClient client) {
+		String host = client.getImapHost() + ":" + client.getImapPort(null);
+		Server ret = servers.get(host);
+		if (ret == null) {
+			ret = new Server(null, client.getImapMaxConnections(), client
+					.getImapIdleTimeout());
+			servers.put(host, ret);
+		}
+		int perUser = client.getImapMaxUserConnections();
+		if (perUser <= 0) {
+			return ret;
+		}
+		String user = host + ":" + client.getImapUser();
+		Server login = servers.get(user);
+		if (login == null) {
+			login = new Server(ret, perUser, client.getImapIdleTimeout());
+			servers.put(user, login);
+		}
+		return login;
+	}
+
+	static String getKey(ImapsnClient client) {
+		return client.getImapHost() + ":" + client.getImapPort(null) + ":"
+				+ client.getImapUser() + ":" + client.getImapEnableSsl() + ":"
+				+ client.getImapCompress();
+	}
+
+	// inner classes
+
+	static class Server {
+		Server parent; // the host's limit of a per-user one
+		int maxConnections;
+		long idleTimeout;
+		Semaphore permits;
+
+		Server(Server parent, int maxConnections, long idleTimeout) {
+			this.parent = parent;
+			this.maxConnections = maxConnections;
+			this.idleTimeout = idleTimeout;
+			this.permits = new Semaphore(maxConnections, true);
+		}
+
+		void release() {
+			permits.release();
+			if (parent != null) {
+				parent.permits.release();
+			}
+		}
+	}
+
+	static class Idle {
+		IMAPStore store;
+		Server server;
+		long since = System.currentTimeMillis();
+
+		Idle(IMAPStore store, Server server) {
+			this.store = store;
+			this.server = server;
+		}
+	}
+
+}
@@ -1,10 +1,14 @@
 package com.github.imapsn;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -12,6 +16,8 @@ import org.json.JSONTokener;
 public class ImapsnClient {
 
 	JSONObject accountConfig;
+	SmtpClient smtpClient = null;
+	ByteCounters byteCounters = new ByteCounters();
 
 	public ImapsnClient() throws EInvalidAccountConfig {
 		this(System.getProperty("user.home") + "/.imapsn");
@@ -40,6 +46,39 @@ public class ImapsnClient {
 	 *   "imap-enable-ssl": true
 	 * }
 	 * </pre>
+	 * 
+	 * Optional tuning keys and their defaults:
+	 * 
+	 * <pre>
+	 *   "object-cache-size": 256,
+	 *   "flush-interval": 30,       // seconds, 0 writes data files through
+	 *   "flush-batch-size": 100,
+	 *   "expunge-batch-size": 50,
+	 *   "mirror-dir": null,         // directory for a local mirror of IMAPSN
+	 *   "local-store-dir": null,    // directory for a local transactional store
+	 *   "export-interval": 60,      // seconds between exports to IMAPSN
+	 *   "compress-threshold": -1,   // gzip stored objects of this many bytes
+	 *   "patch-log": false,         // store data file changes as patches; every
+	 *                               // client of the account must support it first
+	 *   "patch-max-count": 32,      // patches kept before compacting a file
+	 *   "news-segment-size": 500,   // news items packed into one message
+	 *   "news-pack-interval": 0,    // seconds between packing runs, 0 is off
+	 *   "news-retention-months": 3, // months before news is archived, 0 is never
+	 *   "folder-prefixes": [],      // path prefixes stored in IMAPSN subfolders
+	 *   "imap-max-connections": 10, // per IMAP server, all users
+	 *   "imap-max-user-connections": 0, // per user within that, 0 is none
+	 *   "imap-idle-timeout": 300,   // seconds an unused connection is kept
+	 *   "imap-lease-timeout": 60,   // seconds to wait for a free connection
+	 *   "poll-min-interval": 5,     // seconds, InboxWatcher without IDLE
+	 *   "poll-max-interval": 300,   // seconds
+	 *   "processed-folder": null,   // move handled messages here, else delete
+	 *   "defer-expunge": false,     // leave deleted messages until folder close
+	 *   "inbound-queue-size": 0,    // >0 reads new mail on its own connection
+	 *   "heartbeat-interval": 60,   // seconds between NOOPs, 0 is off
+	 *   "imap-compress": false,     // COMPRESS=DEFLATE where the server has it
+	 *   "smtp-max-connections": 2,  // parallel sends, each on its own connection
+	 *   "smtp-idle-timeout": 60     // seconds an unused SMTP connection is kept
+	 * </pre>
 	 */
 	public ImapsnClient(String filename) throws EInvalidAccountConfig {
 		String key = "";
@@ -115,12 +154,19 @@ public class ImapsnClient {
 
 	// smtp stuff
 
-	public SmtpClientBase getSmtpAccount() {
-		try {
-			return new SmtpClient(accountConfig);
-		} catch (JSONException e) {
-			throw new RuntimeException("bug in account config", e);
+	/**
+	 * Return the account's SmtpClient, created on first use so its pooled
+	 * connections are shared by every send.
+	 */
+	public synchronized SmtpClientBase getSmtpAccount() {
+		if (smtpClient == null) {
+			try {
+				smtpClient = new SmtpClient(accountConfig);
+			} catch (JSONException e) {
+				throw new RuntimeException("bug in account config", e);
+			}
 		}
+		return smtpClient;
 	}
 
 	public String getSmtpHost() {
@@ -143,6 +189,18 @@ public class ImapsnClient {
 		return getKey("imap-enable-ssl").equalsIgnoreCase("true");
 	}
 
+	public boolean getImapCompress() {
+		return accountConfig.optBoolean("imap-compress", false);
+	}
+
+	/**
+	 * Return the IMAP traffic of this account with "imap-compress" set,
+	 * see CompressingSocketFactory.
+	 */
+	public ByteCounters getByteCounters() {
+		return byteCounters;
+	}
+
 	// private key
 
 	public String getPrivateKeyPassword() {
@@ -155,8 +213,165 @@ public class ImapsnClient {
 		return getKey("imapsn-folder");
 	}
 
+	/**
+	 * Return the path prefixes, like "contacts" or "news", that are stored
+	 * in their own subfolder of the IMAPSN folder, see FolderLayout.
+	 */
+	public List<String> getFolderPrefixes() {
+		List<String> ret = new ArrayList<String>();
+		JSONArray prefixes = accountConfig.optJSONArray("folder-prefixes");
+		for (int i = 0; prefixes != null && i < prefixes.length(); i++) {
+			ret.add(prefixes.optString(i));
+		}
+		return ret;
+	}
+
 	public String getImapPort(String string) {
 		return getKey("imap-port");
 	}
 
+	// connection pool
+
+	public int getImapMaxConnections() {
+		return accountConfig.optInt("imap-max-connections",
+				ImapConnectionPool.DEFAULT_MAX_CONNECTIONS);
+	}
+
+	public int getImapMaxUserConnections() {
+		return accountConfig.optInt("imap-max-user-connections", 0);
+	}
+
+	public long getImapIdleTimeout() {
+		return accountConfig.optLong("imap-idle-timeout",
+				ImapConnectionPool.DEFAULT_IDLE_TIMEOUT / 1000) * 1000;
+	}
+
+	public long getImapLeaseTimeout() {
+		return accountConfig.optLong("imap-lease-timeout",
+				ImapConnectionPool.DEFAULT_LEASE_TIMEOUT / 1000) * 1000;
+	}
+
+	public long getHeartbeatInterval() {
+		return accountConfig.optLong("heartbeat-interval", 60) * 1000;
+	}
+
+	// new message polling
+
+	public long getPollMinInterval() {
+		return accountConfig.optLong("poll-min-interval", 5) * 1000;
+	}
+
+	public long getPollMaxInterval() {
+		return accountConfig.optLong("poll-max-interval", 300) * 1000;
+	}
+
+	// handled messages
+
+	/**
+	 * Return the folder handled incoming messages are moved to, or null if
+	 * they are deleted. See ProcessedMessages.
+	 */
+	public String getProcessedFolder() {
+		return accountConfig.optString("processed-folder", null);
+	}
+
+	public boolean getDeferExpunge() {
+		return accountConfig.optBoolean("defer-expunge", false);
+	}
+
+	/**
+	 * Return the number of incoming messages the InboxWatcher may have
+	 * queued for the handlers, 0 to route them on the watcher's thread.
+	 */
+	public int getInboundQueueSize() {
+		return accountConfig.optInt("inbound-queue-size", 0);
+	}
+
+	// caching
+
+	public int getObjectCacheSize() {
+		return accountConfig.optInt("object-cache-size",
+				ObjectCache.DEFAULT_CAPACITY);
+	}
+
+	// write-behind of data files
+
+	public long getFlushInterval() {
+		return accountConfig.optLong("flush-interval",
+				FlushScheduler.DEFAULT_INTERVAL / 1000) * 1000;
+	}
+
+	public int getFlushBatchSize() {
+		return accountConfig.optInt("flush-batch-size",
+				FlushScheduler.DEFAULT_BATCH_SIZE);
+	}
+
+	public int getExpungeBatchSize() {
+		return accountConfig.optInt("expunge-batch-size",
+				ExpungeQueue.DEFAULT_BATCH_SIZE);
+	}
+
+	// local mirror
+
+	/**
+	 * Return the directory of the local IMAPSN mirror, or null if the account
+	 * doesn't keep one.
+	 */
+	public File getMirrorDir() {
+		String dir = accountConfig.optString("mirror-dir", null);
+		return (dir == null) ? null : new File(dir);
+	}
+
+	// local transactional store
+
+	/**
+	 * Return the directory of the local transactional store, or null if
+	 * writes go straight to IMAPSN.
+	 */
+	public File getLocalStoreDir() {
+		String dir = accountConfig.optString("local-store-dir", null);
+		return (dir == null) ? null : new File(dir);
+	}
+
+	public long getExportInterval() {
+		return accountConfig.optLong("export-interval", 60) * 1000;
+	}
+
+	/**
+	 * Return the size in bytes from which objects stored in IMAPSN are
+	 * gzipped; negative, the default, disables compression. Other clients
+	 * of the account must read gzipped parts before it is turned on.
+	 */
+	public int getCompressThreshold() {
+		return accountConfig.optInt("compress-threshold", -1);
+	}
+
+	/**
+	 * True if data files are written as a PatchLog of changes. Clients that
+	 * predate PatchLog only read the base, so this must not be turned on
+	 * until every client of the account supports it.
+	 */
+	public boolean getPatchLog() {
+		return accountConfig.optBoolean("patch-log", false);
+	}
+
+	public int getPatchMaxCount() {
+		return accountConfig.optInt("patch-max-count",
+				PatchLog.DEFAULT_MAX_PATCHES);
+	}
+
+	// news segments
+
+	public int getNewsSegmentSize() {
+		return accountConfig.optInt("news-segment-size", 500);
+	}
+
+	public long getNewsPackInterval() {
+		return accountConfig.optLong("news-pack-interval", 0) * 1000;
+	}
+
+	public int getNewsRetentionMonths() {
+		return accountConfig.optInt("news-retention-months", 3);
+	}
+
 }
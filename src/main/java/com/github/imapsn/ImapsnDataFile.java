@@ -35,5 +35,15 @@ import org.json.JSONObject;
 public interface ImapsnDataFile {
 	public String getFilename();
 	public JSONObject getJson();
+
+	/**
+	 * Mark the file as changed. It is written to IMAPSN by the client's
+	 * FlushScheduler.
+	 */
 	public void save() throws MessagingException;
+
+	/**
+	 * Write the file to IMAPSN now.
+	 */
+	public void write() throws MessagingException;
 }
@@ -0,0 +1,196 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Joins the InboxWatcher, which reads new mail on the inbound connection,
+ * to the handlers that write to IMAPSN, through a queue of at most
+ * "inbound-queue-size" DetachedMessages. The watcher copies each new IMAPSN
+ * message and goes back to fetching while a writer thread routes the
+ * copies, so reading, verifying and storing overlap. A full queue makes
+ * the watcher wait.
+ * 
+ * The writer takes whatever is queued as one batch: it is routed with one
+ * flushProcessed() at the end, then the highest UID routed is saved to the
+ * InboxState. Messages still queued when the client stops are seen again
+ * after a restart.
+ */
+public class InboundPipeline implements Runnable {
+
+	ImapClient imap;
+	MessageRouter router;
+	BlockingQueue<DetachedMessage> queue;
+	volatile boolean running = false;
+	Thread thread = null;
+
+	public InboundPipeline(ImapClient imap, MessageRouter router) {
+		this.imap = imap;
+		this.router = router;
+		this.queue = new ArrayBlockingQueue<DetachedMessage>(imap
+				.getImapsnClient().getInboundQueueSize());
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	// reading side
+
+	/**
+	 * Queue a copy of each IMAPSN message in <code>msgs</code>, waiting
+	 * while the queue is full. Return the number queued.
+	 */
+	public int put(Message[] msgs) throws MessagingException,
+			InterruptedException {
+		int queued = 0;
+		for (int i = 0; i < msgs.length; i++) {
+			Message m = msgs[i];
+			if (m == null || m.isExpunged()
+					|| m.getFlags().contains(Flag.DELETED)
+					|| MessageRouter.getMessageType(m) == null) {
+				continue;
+			}
+			queue.put(new DetachedMessage((MimeMessage) m));
+			queued++;
+		}
+		return queued;
+	}
+
+	// writing side
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "imapsn-writer-"
+				+ imap.getImapsnClient().getAccountName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the writer once it has routed what is queued.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			t = thread;
+			thread = null;
+		}
+		t.interrupt();
+		try {
+			t.join(10 * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				List<DetachedMessage> batch = new ArrayList<DetachedMessage>();
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				route(batch);
+			} catch (InterruptedException e) {
+				// stopped
+			}
+		}
+		List<DetachedMessage> rest = new ArrayList<DetachedMessage>();
+		queue.drainTo(rest);
+		if (!rest.isEmpty()) {
+			route(rest);
+		}
+	}
+
+	protected void route(List<DetachedMessage> batch) {
+		try {
+			MessageRouter.Routed routed = router.route(batch
+					.toArray(new Message[batch.size()]), false);
+			if (routed.done != null) {
+				saveLastUids(batch.subList(0, batch.indexOf(routed.done) + 1));
+			}
+		} catch (MessagingException e) {
+			// the batch is seen again after a restart
+			imap.reportError("inbound pipeline", e);
+		}
+	}
+
+	/**
+	 * Record the highest UID routed from each source folder, for the
+	 * InboxWatcher to start from after a restart. Only pass the messages
+	 * up to the first one a handler failed on, so that it is routed again.
+	 */
+	protected void saveLastUids(List<DetachedMessage> batch)
+			throws MessagingException {
+		Map<IMAPFolder, Long> last = new HashMap<IMAPFolder, Long>();
+		for (DetachedMessage m : batch) {
+			Long uid = last.get(m.getSourceFolder());
+			if (uid == null || uid < m.getSourceUid()) {
+				last.put(m.getSourceFolder(), m.getSourceUid());
+			}
+		}
+		InboxState state = imap.getInboxState();
+		for (Map.Entry<IMAPFolder, Long> e : last.entrySet()) {
+			IMAPFolder f = e.getKey();
+			long uidValidity = f.getUIDValidity();
+			long saved = state.getLastUid(f.getFullName(), uidValidity,
+					InboxWatcher.READER);
+			if (e.getValue() > saved) {
+				state.setLastUid(f.getFullName(), uidValidity,
+						InboxWatcher.READER, e.getValue());
+			}
+		}
+		state.save();
+	}
+
+}
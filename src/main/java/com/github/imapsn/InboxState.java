@@ -0,0 +1,121 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * How far each reader of incoming mail has got, stored in
+ * <code>/inbox-state.json</code>: per folder its UIDVALIDITY and, per
+ * reader, the highest UID already processed.
+ * 
+ * <pre>
+ * {"id": ..., "folders": {name: {"uidValidity": v,
+ *                                "lastUid": {reader: uid, ...}}, ...}}
+ * </pre>
+ * 
+ * A reader is a message type given to getNewMessages(), "*" for all of
+ * them, or the InboxWatcher. When a folder's UIDVALIDITY changes its marks
+ * start again from 0.
+ */
+public class InboxState implements ImapsnDataFile {
+
+	public static String FILENAME = "/inbox-state.json";
+	JSONObject state;
+	ImapClientBase imap;
+
+	public InboxState(ImapClientBase imap) throws MessagingException,
+			IOException {
+		this.imap = imap;
+		state = imap.get(getFilename());
+		if (state == null) {
+			state = new JSONObject();
+			try {
+				state.put("id", imap.getAccountOwner().newId());
+				state.put("folders", new JSONObject());
+			} catch (JSONException e) {
+			}
+		}
+	}
+
+	// properties
+
+	public String getFilename() {
+		return FILENAME;
+	}
+
+	public JSONObject getJson() {
+		return state;
+	}
+
+	/**
+	 * Return the highest UID in <code>folder</code> already handed to
+	 * <code>reader</code>, or 0.
+	 */
+	public synchronized long getLastUid(String folder, long uidValidity,
+			String reader) {
+		JSONObject f = state.optJSONObject("folders").optJSONObject(folder);
+		if (f == null || f.optLong("uidValidity") != uidValidity) {
+			return 0;
+		}
+		return f.optJSONObject("lastUid").optLong(reader, 0);
+	}
+
+	public synchronized void setLastUid(String folder, long uidValidity,
+			String reader, long uid) {
+		try {
+			JSONObject folders = state.getJSONObject("folders");
+			JSONObject f = folders.optJSONObject(folder);
+			if (f == null || f.optLong("uidValidity") != uidValidity) {
+				f = new JSONObject();
+				f.put("uidValidity", uidValidity);
+				f.put("lastUid", new JSONObject());
+				folders.put(folder, f);
+			}
+			f.getJSONObject("lastUid").put(reader, uid);
+		} catch (JSONException e) {
+			throw new RuntimeException("bug: cannot update " + FILENAME, e);
+		}
+	}
+
+	// persisting back to IMAPSN
+
+	public void save() throws MessagingException {
+		imap.getFlushScheduler().markDirty(this);
+	}
+
+	public void write() throws MessagingException {
+		imap.put(getFilename(), state);
+	}
+
+}
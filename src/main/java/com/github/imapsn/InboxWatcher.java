@@ -0,0 +1,306 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.FolderClosedException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * Watches the account owner's new-message folder and sends each new IMAPSN
+ * message through its MessageRouter.
+ * 
+ * The watcher leases its own connection to the folder and runs on its own
+ * daemon thread. It waits in IDLE when the server supports it, waking up on
+ * EXISTS and EXPUNGE and re-entering IDLE every IDLE_KEEPALIVE ms so the
+ * server doesn't drop it. Otherwise it polls, halving the interval down to
+ * "poll-min-interval" when mail arrives and doubling it up to
+ * "poll-max-interval" while none does. Either way only messages with UIDs
+ * above the last one seen are fetched; that UID is kept in the InboxState.
+ * 
+ * With an "inbound-queue-size" the folder is read on a store of its own and
+ * the messages are handed to an InboundPipeline instead of being routed
+ * here, so the watcher doesn't wait for the handlers' writes.
+ */
+public class InboxWatcher implements Runnable {
+
+	public static long IDLE_KEEPALIVE = 25 * 60 * 1000; // 25m
+	static final String READER = "InboxWatcher";
+
+	ImapClient imap;
+	MessageRouter router;
+	InboundPipeline pipeline = null;
+	IMAPFolder folder = null;
+	long lastUid = 0;
+	long pollInterval;
+	volatile boolean running = false;
+	Thread thread = null;
+	ScheduledFuture<?> keepalive = null;
+
+	public InboxWatcher(ImapClient imap) {
+		this.imap = imap;
+		this.router = new MessageRouter(imap);
+		if (imap.getImapsnClient().getInboundQueueSize() > 0) {
+			this.pipeline = new InboundPipeline(imap, router);
+		}
+		this.pollInterval = imap.getImapsnClient().getPollMinInterval();
+	}
+
+	// properties
+
+	public synchronized long getLastUid() {
+		return lastUid;
+	}
+
+	public synchronized void setLastUid(long lastUid) {
+		this.lastUid = lastUid;
+	}
+
+	/**
+	 * Record the last UID seen in the InboxState so a restarted watcher
+	 * carries on from there.
+	 */
+	protected void saveLastUid() throws MessagingException {
+		InboxState state = imap.getInboxState();
+		state.setLastUid(folder.getFullName(), folder.getUIDValidity(),
+				READER, getLastUid());
+		state.save();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Return the router the watcher sends new messages through; register
+	 * handlers on it.
+	 */
+	public MessageRouter getRouter() {
+		return router;
+	}
+
+	// watching
+
+	public synchronized void start() throws MessagingException {
+		if (running) {
+			return;
+		}
+		open();
+		if (pipeline != null) {
+			pipeline.start();
+		}
+		running = true;
+		thread = new Thread(this, "imapsn-watcher-"
+				+ imap.getImapsnClient().getAccountName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() throws MessagingException {
+		Thread t;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			t = thread;
+			thread = null;
+			if (keepalive != null) {
+				keepalive.cancel(false);
+				keepalive = null;
+			}
+		}
+		// ends a pending IDLE
+		noop();
+		t.interrupt();
+		try {
+			t.join(10 * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (pipeline != null) {
+			// routes what is still queued while the folder is open
+			pipeline.stop();
+		}
+		close();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				int n = check();
+				if (!running) {
+					break;
+				}
+				if (isIdleSupported()) {
+					folder.idle();
+				} else {
+					long min = imap.getImapsnClient().getPollMinInterval();
+					long max = imap.getImapsnClient().getPollMaxInterval();
+					pollInterval = (n > 0) ? Math.max(min, pollInterval / 2)
+							: Math.min(max, pollInterval * 2);
+					Thread.sleep(pollInterval);
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (FolderClosedException e) {
+				reopen();
+			} catch (StoreClosedException e) {
+				reopen();
+			} catch (MessagingException e) {
+				imap.reportError("inbox watcher", e);
+				reopen();
+			}
+		}
+	}
+
+	/**
+	 * Hand the messages that arrived since the last check to their
+	 * handlers, or to the pipeline. The last UID only moves past messages
+	 * handled without a failure, so the next check retries from the first
+	 * one a handler failed on. Return the number of IMAPSN messages handled
+	 * or queued.
+	 */
+	public int check() throws MessagingException {
+		long since = getLastUid();
+		Message[] msgs = folder.getMessagesByUID(since + 1, UIDFolder.LASTUID);
+		MimeUtil.prefetch(folder, msgs);
+		List<Message> fresh = new ArrayList<Message>();
+		for (int i = 0; i < msgs.length; i++) {
+			// n:* always matches the last message
+			if (msgs[i] != null && folder.getUID(msgs[i]) > since) {
+				fresh.add(msgs[i]);
+			}
+		}
+		Message[] batch = fresh.toArray(new Message[fresh.size()]);
+		if (pipeline != null) {
+			// queued is not handled: the pipeline saves the last UID once
+			// it has routed them
+			for (Message m : batch) {
+				setLastUid(Math.max(getLastUid(), folder.getUID(m)));
+			}
+			try {
+				return pipeline.put(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return 0;
+			}
+		}
+		MessageRouter.Routed routed = router.route(batch, false);
+		if (routed.done != null) {
+			setLastUid(folder.getUID(routed.done));
+			saveLastUid();
+		}
+		return routed.count;
+	}
+
+	protected boolean isIdleSupported() throws MessagingException {
+		return ((IMAPStore) folder.getStore()).hasCapability("IDLE");
+	}
+
+	protected synchronized void open() throws MessagingException {
+		folder = imap.leaseNewMessageFolder();
+		setLastUid(imap.getInboxState().getLastUid(folder.getFullName(),
+				folder.getUIDValidity(), READER));
+		if (isIdleSupported()) {
+			keepalive = imap.getScheduler().scheduleWithFixedDelay(
+					new Runnable() {
+						public void run() {
+							noop();
+						}
+					}, IDLE_KEEPALIVE, IDLE_KEEPALIVE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	protected synchronized void close() throws MessagingException {
+		if (keepalive != null) {
+			keepalive.cancel(false);
+			keepalive = null;
+		}
+		if (folder != null) {
+			imap.releaseFolder(folder);
+			folder = null;
+		}
+	}
+
+	protected void reopen() {
+		try {
+			close();
+		} catch (MessagingException e) {
+			// the connection is gone anyway
+		}
+		while (running) {
+			try {
+				open();
+				return;
+			} catch (MessagingException e) {
+				// tried again after the longest poll interval
+				imap.reportError("inbox watcher reopen", e);
+				try {
+					Thread.sleep(imap.getImapsnClient().getPollMaxInterval());
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send a NOOP on the watched folder, which ends a pending IDLE.
+	 */
+	protected void noop() {
+		IMAPFolder f = folder;
+		if (f == null || !f.isOpen()) {
+			return;
+		}
+		try {
+			f.doCommand(new IMAPFolder.ProtocolCommand() {
+				public Object doCommand(IMAPProtocol p)
+						throws ProtocolException {
+					p.noop();
+					return null;
+				}
+			});
+		} catch (MessagingException e) {
+			// the watcher thread reopens the folder
+		}
+	}
+
+}
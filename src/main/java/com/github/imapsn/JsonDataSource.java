@@ -29,30 +29,68 @@ or implied, of Jason Kantz.
 package com.github.imapsn;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.activation.DataSource;
 
 import org.json.JSONObject;
 
+/**
+ * Serves a JSONObject as an application/json attachment. Objects whose
+ * UTF-8 form is at least <code>compressThreshold</code> bytes are gzipped
+ * and marked with the content type parameter
+ * <code>x-imapsn-encoding=gzip</code>; MimeUtil.getAttachedJson() undoes
+ * this transparently.
+ */
 public class JsonDataSource implements DataSource {
-	String jsonString = null;
-	
+	public static final String ENCODING_PARAM = "x-imapsn-encoding";
+	public static final String GZIP = "gzip";
+
+	byte[] data = null;
+	boolean gzipped = false;
+
 	JsonDataSource(JSONObject jsonObject) {
-		this.jsonString = jsonObject.toString();
+		this(jsonObject, -1);
+	}
+
+	/**
+	 * A negative <code>compressThreshold</code> never compresses.
+	 */
+	JsonDataSource(JSONObject jsonObject, int compressThreshold) {
+		try {
+			data = jsonObject.toString().getBytes("UTF8");
+			if (compressThreshold >= 0 && data.length >= compressThreshold) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				GZIPOutputStream gz = new GZIPOutputStream(bos);
+				gz.write(data);
+				gz.close();
+				data = bos.toByteArray();
+				gzipped = true;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("bug: in-memory write failed", e);
+		}
+	}
+
+	public boolean isGzipped() {
+		return gzipped;
 	}
-	
+
 	@Override
 	public String getContentType() {
+		if (gzipped) {
+			return "application/json; " + ENCODING_PARAM + "=" + GZIP;
+		}
 		return "application/json";
 	}
 
 	@Override
 	public InputStream getInputStream() throws IOException {
-		InputStream is = new ByteArrayInputStream(
-				jsonString.getBytes("UTF8"));
+		InputStream is = new ByteArrayInputStream(data);
 		return is;
 	}
 
@@ -29,80 +29,169 @@ or implied, of Jason Kantz.
 package com.github.imapsn;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.mail.MessagingException;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Public keys of friends stored one per message as
+ * <code>/key/{key-hash}</code>. Keys are read from IMAPSN the first time
+ * they are looked up and only the keys added since the last write are
+ * written back.
+ * 
+ * A monolithic <code>/key-map.json</code> from an older client is migrated
+ * to the sharded layout when the key map is opened.
+ */
 public class KeyMap implements ImapsnDataFile {
-    
-    static String FILENAME = "/key-map.json";
-    JSONObject keyMap;
-    ImapClientBase imap;
-
-    public KeyMap(ImapClientBase imap) throws ReadFailure {
-    	this.imap = imap;
-        try {
-			keyMap = imap.get(getFilename());
-			if (keyMap ==  null) {
-				keyMap = new JSONObject();
-				keyMap.put("id", imap.getAccountOwner().newId());
-			}
+
+	static String PREFIX = "/key/";
+	static String LEGACY_FILENAME = "/key-map.json";
+	JSONObject keyMap = new JSONObject();
+	Set<String> dirty = new LinkedHashSet<String>();
+	ImapClientBase imap;
+
+	public KeyMap(ImapClientBase imap) throws ReadFailure {
+		this.imap = imap;
+		try {
+			migrate();
 		} catch (MessagingException e) {
 			throw new ReadFailure(e);
 		} catch (IOException e) {
 			throw new ReadFailure(e);
-		} catch (JSONException e) {
 		}
-    }
-    
-    // properties
-    
+	}
+
+	// properties
+
 	public String getFilename() {
-		return FILENAME;
+		return PREFIX;
 	}
-	
+
+	/**
+	 * Return the keys that have been loaded or added so far.
+	 */
 	public JSONObject getJson() {
-		// TODO Auto-generated method stub
 		return keyMap;
 	}
 
 	// persisting back to IMAPSN
-	
-    public void save() throws MessagingException {
-    	imap.put(getFilename(), keyMap);
-    }
-	
+
+	public void save() throws MessagingException {
+		imap.getFlushScheduler().markDirty(this);
+	}
+
+	public void write() throws MessagingException {
+		for (Iterator<String> it = dirty.iterator(); it.hasNext();) {
+			String keyhash = it.next();
+			JSONObject shard = new JSONObject();
+			try {
+				shard.put("id", keyhash);
+				shard.put("publicKey", keyMap.getString(keyhash));
+			} catch (JSONException e) {
+				throw new RuntimeException("bug: key-map entry " + keyhash, e);
+			}
+			imap.put(PREFIX + keyhash, shard);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Move the entries of a monolithic key-map.json into /key/ shards and
+	 * delete it. The shards are written before the old file is deleted so an
+	 * interrupted migration is simply redone.
+	 */
+	protected void migrate() throws MessagingException, IOException {
+		JSONObject legacy = imap.get(LEGACY_FILENAME);
+		if (legacy != null) {
+			for (Iterator<?> it = legacy.keys(); it.hasNext();) {
+				String keyhash = (String) it.next();
+				if (!keyhash.equals("id")) {
+					putPublicKey(keyhash, legacy.optString(keyhash));
+				}
+			}
+			write();
+			imap.delete(LEGACY_FILENAME);
+		}
+	}
+
 	// set and lookup keyhash
-    
-    public boolean hasPublicKey(String keyhash) {
-        return keyMap.has(keyhash);
-    }
-    
-    public String getPublicKey(String keyhash) {
-        try {
-            return keyMap.getString(keyhash);
-        } catch (JSONException e) {
-            return null;
-        }
-    }
-    
-    public void putPublicKey(String keyhash, String publicKey) {
-    	try {
+
+	public boolean hasPublicKey(String keyhash) {
+		return getPublicKey(keyhash) != null;
+	}
+
+	public String getPublicKey(String keyhash) {
+		if (!keyMap.has(keyhash)) {
+			load(keyhash);
+		}
+		return keyMap.optString(keyhash, null);
+	}
+
+	public void putPublicKey(String keyhash, String publicKey) {
+		try {
 			keyMap.put(keyhash, publicKey);
+			dirty.add(keyhash);
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
-    }
+	}
+
+	/**
+	 * Return a key map holding the known keys for the signatures of a magic
+	 * envelope, suitable for Pkcs.checkMagicEnvelope.
+	 */
+	public JSONObject getKeysFor(JSONObject magicEnvelope) {
+		JSONObject ret = new JSONObject();
+		JSONArray sigs = magicEnvelope.optJSONArray("sigs");
+		if (sigs != null) {
+			for (int i = 0; i < sigs.length(); i++) {
+				JSONObject sig = sigs.optJSONObject(i);
+				String keyhash = (sig == null) ? null : sig.optString("keyhash",
+						null);
+				String publicKey = (keyhash == null) ? null
+						: getPublicKey(keyhash);
+				if (publicKey != null) {
+					try {
+						ret.put(keyhash, publicKey);
+					} catch (JSONException e) {
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	// helpers
+
+	protected void load(String keyhash) {
+		try {
+			JSONObject shard = imap.get(PREFIX + keyhash);
+			if (shard != null) {
+				keyMap.put(keyhash, shard.getString("publicKey"));
+			}
+		} catch (MessagingException e) {
+			throw new RuntimeException("could not read key " + keyhash, e);
+		} catch (IOException e) {
+			throw new RuntimeException("could not read key " + keyhash, e);
+		} catch (JSONException e) {
+			// corrupt shard, treat the key as unknown
+		}
+	}
 
 	// inner classes
-	
-    public static class ReadFailure extends Exception {
-        private static final long serialVersionUID = 1L;
-        public ReadFailure(Exception e) {
-            super(e);
-        }
-    }
-	
+
+	public static class ReadFailure extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public ReadFailure(Exception e) {
+			super(e);
+		}
+	}
+
 }
@@ -0,0 +1,338 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Local transactional store in front of the IMAPSN folder ("Approach 2" in
+ * issues.markdown). Writes are committed to a write-ahead log on local disk
+ * and fsync'ed; committed transactions are exported to IMAPSN later, in
+ * order, by export(). The log is replayed on open so transactions committed
+ * but not yet exported before a crash are exported on the next run.
+ * 
+ * Log records are
+ * 
+ * <pre>
+ * type(1) txid(8) length(4) payload(length) crc32(8)
+ * </pre>
+ * 
+ * where a COMMIT payload is the JSON list of the transaction's operations and
+ * an EXPORTED record marks every transaction up to txid as written to IMAPSN.
+ * A torn record at the end of the log is discarded, so a transaction is
+ * either entirely in the log or not at all.
+ */
+public class LocalStore {
+
+	static byte COMMIT = 1;
+	static byte EXPORTED = 2;
+
+	File logFile;
+	RandomAccessFile log;
+	long nextTxid = 1;
+	List<Transaction> unexported = new ArrayList<Transaction>();
+	Map<String, Op> pending = new HashMap<String, Op>();
+	Object exportLock = new Object();
+
+	public LocalStore(File dir) {
+		this.logFile = new File(dir, "wal.log");
+	}
+
+	// opening and closing
+
+	/**
+	 * Open the log and replay the transactions that were committed but not
+	 * exported.
+	 */
+	public synchronized void open() throws IOException {
+		logFile.getParentFile().mkdirs();
+		log = new RandomAccessFile(logFile, "rw");
+		replay();
+	}
+
+	public synchronized void close() throws IOException {
+		if (log != null) {
+			log.close();
+			log = null;
+		}
+	}
+
+	// reads
+
+	/**
+	 * True if <code>path</code> was written or deleted by a transaction that
+	 * hasn't been exported yet, in which case get() has its current value.
+	 */
+	public synchronized boolean contains(String path) {
+		return pending.containsKey(path);
+	}
+
+	/**
+	 * Return a copy of the unexported value of <code>path</code>, null if it
+	 * was deleted or isn't pending.
+	 */
+	public synchronized JSONObject get(String path) {
+		Op op = pending.get(path);
+		return (op == null || op.json == null) ? null : ObjectCache
+				.copy(op.json);
+	}
+
+	public synchronized int getUnexportedCount() {
+		return unexported.size();
+	}
+
+	// transactions
+
+	public Transaction begin() {
+		return new Transaction();
+	}
+
+	/**
+	 * Make <code>tx</code> durable in the log and visible to readers.
+	 */
+	protected synchronized void commit(Transaction tx) throws IOException {
+		if (tx.ops.isEmpty()) {
+			return;
+		}
+		tx.txid = nextTxid++;
+		JSONArray ops = new JSONArray();
+		for (Op op : tx.ops.values()) {
+			ops.put(op.toJson());
+		}
+		append(COMMIT, tx.txid, ops.toString().getBytes("UTF8"));
+		log.getChannel().force(false);
+		apply(tx);
+	}
+
+	/**
+	 * Write every committed transaction to IMAPSN through
+	 * <code>imap</code>, oldest first, and truncate the log once nothing is
+	 * left to export. Stops at the first failure; what was not exported is
+	 * retried by the next call.
+	 */
+	public void export(ImapClient imap) throws MessagingException,
+			IOException {
+		synchronized (exportLock) {
+			while (exportOne(imap)) {
+			}
+		}
+	}
+
+	protected boolean exportOne(ImapClient imap) throws MessagingException,
+			IOException {
+		Transaction tx;
+		synchronized (this) {
+			if (unexported.isEmpty()) {
+				if (log.length() > 0) {
+					log.setLength(0);
+					log.getChannel().force(false);
+				}
+				return false;
+			}
+			tx = unexported.get(0);
+		}
+		Map<String, JSONObject> puts = new LinkedHashMap<String, JSONObject>();
+		for (Op op : tx.ops.values()) {
+			if (op.json == null) {
+				imap.deleteThrough(op.path);
+			} else {
+				puts.put(op.path, op.json);
+			}
+		}
+		imap.putAllThrough(puts);
+		synchronized (this) {
+			append(EXPORTED, tx.txid, new byte[0]);
+			unexported.remove(0);
+			for (Op op : tx.ops.values()) {
+				if (pending.get(op.path) == op) {
+					pending.remove(op.path);
+				}
+			}
+		}
+		return true;
+	}
+
+	// helpers
+
+	protected void apply(Transaction tx) {
+		unexported.add(tx);
+		for (Op op : tx.ops.values()) {
+			pending.put(op.path, op);
+		}
+	}
+
+	protected void append(byte type, long txid, byte[] payload)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		out.writeByte(type);
+		out.writeLong(txid);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.writeLong(crc.getValue());
+		out.flush();
+		log.seek(log.length());
+		log.write(bytes.toByteArray());
+	}
+
+	protected Transaction readTransaction(long txid, JSONArray ops)
+			throws JSONException {
+		Transaction tx = new Transaction();
+		tx.txid = txid;
+		for (int i = 0; i < ops.length(); i++) {
+			JSONObject op = ops.getJSONObject(i);
+			String path = op.getString("path");
+			tx.ops.put(path, new Op(path, op.optJSONObject("json")));
+		}
+		return tx;
+	}
+
+	protected void replay() throws IOException {
+		Map<Long, Transaction> committed = new LinkedHashMap<Long, Transaction>();
+		long exportedTxid = 0;
+		long good = 0;
+		log.seek(0);
+		try {
+			while (true) {
+				byte type = log.readByte();
+				long txid = log.readLong();
+				int length = log.readInt();
+				if (length < 0 || length > log.length()) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				log.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (log.readLong() != crc.getValue()) {
+					break;
+				}
+				if (type == COMMIT) {
+					committed.put(txid, readTransaction(txid, new JSONArray(
+							new String(payload, "UTF8"))));
+				} else if (type == EXPORTED) {
+					exportedTxid = Math.max(exportedTxid, txid);
+				}
+				nextTxid = Math.max(nextTxid, txid + 1);
+				good = log.getFilePointer();
+			}
+		} catch (EOFException e) {
+			// end of log, possibly a torn record
+		} catch (JSONException e) {
+			// corrupt payload that passed the crc, stop here
+		}
+		log.setLength(good);
+		for (Transaction tx : committed.values()) {
+			if (tx.txid > exportedTxid) {
+				apply(tx);
+			}
+		}
+	}
+
+	// inner classes
+
+	/**
+	 * A set of puts and deletes that become durable and visible together.
+	 * Later operations on a path replace earlier ones in the same
+	 * transaction.
+	 */
+	public class Transaction {
+		long txid = -1;
+		LinkedHashMap<String, Op> ops = new LinkedHashMap<String, Op>();
+
+		public void put(String path, JSONObject json) {
+			ops.put(path, new Op(path, ObjectCache.copy(json)));
+		}
+
+		public void delete(String path) {
+			ops.put(path, new Op(path, null));
+		}
+
+		public boolean isEmpty() {
+			return ops.isEmpty();
+		}
+
+		public boolean contains(String path) {
+			return ops.containsKey(path);
+		}
+
+		public JSONObject get(String path) {
+			Op op = ops.get(path);
+			return (op == null || op.json == null) ? null : ObjectCache
+					.copy(op.json);
+		}
+
+		public void commit() throws IOException {
+			LocalStore.this.commit(this);
+		}
+	}
+
+	static class Op {
+		String path;
+		JSONObject json; // null for a delete
+
+		Op(String path, JSONObject json) {
+			this.path = path;
+			this.json = json;
+		}
+
+		JSONObject toJson() {
+			JSONObject ret = new JSONObject();
+			try {
+				ret.put("path", path);
+				if (json != null) {
+					ret.put("json", json);
+				}
+			} catch (JSONException e) {
+				throw new RuntimeException("bug: op " + path, e);
+			}
+			return ret;
+		}
+	}
+
+}
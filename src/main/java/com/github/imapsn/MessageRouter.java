@@ -0,0 +1,242 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Sends incoming IMAPSN messages to the handlers registered for their type,
+ * the word after "[IMAPSN] " in the subject. route() covers every type in
+ * one pass: one search for all IMAPSN messages, one FETCH of their
+ * envelopes and flags, one FETCH of their JSON attachments per part number
+ * (see MimeUtil.prefetchJson()), then each message goes to its handlers.
+ * Handlers registered for ANY see every IMAPSN message.
+ * 
+ * Messages the handlers mark processed are removed in one batch at the end
+ * of each route(), see ProcessedMessages. Only then does route() move the
+ * new-message mark, up to the message before the first one a handler
+ * failed on, so failed messages are routed again next time.
+ * 
+ * addDefaultHandlers() registers the library's own processing:
+ * Friend.acceptFriendRequest, Friend.processFriendResponse and
+ * NewsItem.processNewsItem.
+ */
+public class MessageRouter {
+
+	public static final String FRIEND_REQUEST = "friend-request";
+	public static final String FRIEND_RESPONSE = "friend-response";
+	public static final String NEWS_ITEM = "news-item";
+	public static final String ANY = "*";
+
+	/**
+	 * Called for each new IMAPSN message of the types it is registered for.
+	 */
+	public interface MessageHandler {
+		public void handle(ImapClientBase imap, MimeMessage mm)
+				throws MessagingException;
+	}
+
+	ImapClientBase imap;
+	Map<String, List<MessageHandler>> handlers = new HashMap<String, List<MessageHandler>>();
+
+	public MessageRouter(ImapClientBase imap) {
+		this.imap = imap;
+	}
+
+	/**
+	 * Return the IMAPSN message type in the subject of <code>m</code>, or
+	 * null if it isn't an IMAPSN message.
+	 */
+	public static String getMessageType(Message m) throws MessagingException {
+		String subject = m.getSubject();
+		if (subject == null || !subject.startsWith("[IMAPSN] ")) {
+			return null;
+		}
+		int colon = subject.indexOf(':');
+		if (colon == -1) {
+			return null;
+		}
+		return subject.substring("[IMAPSN] ".length(), colon).trim();
+	}
+
+	// handlers
+
+	public synchronized void addHandler(String messageType,
+			MessageHandler handler) {
+		List<MessageHandler> list = handlers.get(messageType);
+		if (list == null) {
+			list = new ArrayList<MessageHandler>();
+			handlers.put(messageType, list);
+		}
+		list.add(handler);
+	}
+
+	public synchronized void removeHandler(String messageType,
+			MessageHandler handler) {
+		List<MessageHandler> list = handlers.get(messageType);
+		if (list != null) {
+			list.remove(handler);
+		}
+	}
+
+	protected synchronized List<MessageHandler> getHandlers(String messageType) {
+		List<MessageHandler> ret = new ArrayList<MessageHandler>();
+		if (handlers.containsKey(messageType)) {
+			ret.addAll(handlers.get(messageType));
+		}
+		if (handlers.containsKey(ANY)) {
+			ret.addAll(handlers.get(ANY));
+		}
+		return ret;
+	}
+
+	/**
+	 * Register the library's handlers for friend requests, friend responses
+	 * and news items.
+	 */
+	public void addDefaultHandlers() {
+		addHandler(FRIEND_REQUEST, new MessageHandler() {
+			public void handle(ImapClientBase imap, MimeMessage mm)
+					throws MessagingException {
+				Friend.acceptFriendRequest(imap, mm);
+			}
+		});
+		addHandler(FRIEND_RESPONSE, new MessageHandler() {
+			public void handle(ImapClientBase imap, MimeMessage mm)
+					throws MessagingException {
+				Friend.processFriendResponse(imap, mm);
+			}
+		});
+		addHandler(NEWS_ITEM, new MessageHandler() {
+			public void handle(ImapClientBase imap, MimeMessage mm)
+					throws MessagingException {
+				NewsItem.processNewsItem(imap, mm);
+			}
+		});
+	}
+
+	// routing
+
+	/**
+	 * Route every new IMAPSN message, see getNewMessages(). Return the
+	 * number of messages routed.
+	 */
+	public int route() throws MessagingException {
+		Message[] msgs = imap.getNewMessages();
+		if (msgs.length > 0) {
+			MimeUtil.prefetch(msgs[0].getFolder(), msgs);
+		}
+		return route(msgs, true).count;
+	}
+
+	/**
+	 * Send each of <code>msgs</code>, prefetched with MimeUtil.prefetch(), to
+	 * its handlers. The JSON attachments of those still in their IMAP folder
+	 * are fetched together first. A failing handler doesn't stop the others.
+	 * Return the number of IMAPSN messages routed.
+	 */
+	public int route(Message[] msgs) throws MessagingException {
+		return route(msgs, false).count;
+	}
+
+	/**
+	 * Route <code>msgs</code>, in UID order, and with <code>commit</code>
+	 * move the new-message mark past those processed without a failure.
+	 * Callers that keep their own mark should move it no further than the
+	 * returned Routed.done.
+	 */
+	protected Routed route(Message[] msgs, boolean commit)
+			throws MessagingException {
+		String[] types = new String[msgs.length];
+		List<Message> imapsn = new ArrayList<Message>();
+		for (int i = 0; i < msgs.length; i++) {
+			Message m = msgs[i];
+			if (m != null && !m.isExpunged()
+					&& !m.getFlags().contains(Flag.DELETED)) {
+				types[i] = getMessageType(m);
+			}
+			if (types[i] != null && m.getFolder() instanceof IMAPFolder) {
+				imapsn.add(m);
+			}
+		}
+		if (!imapsn.isEmpty()) {
+			MimeUtil.prefetchJson((IMAPFolder) imapsn.get(0).getFolder(),
+					imapsn.toArray(new Message[imapsn.size()]));
+		}
+
+		Routed routed = new Routed();
+		boolean failed = false;
+		for (int i = 0; i < msgs.length; i++) {
+			Message m = msgs[i];
+			String type = types[i];
+			if (type != null) {
+				for (MessageHandler handler : getHandlers(type)) {
+					try {
+						handler.handle(imap, (MimeMessage) m);
+					} catch (MessagingException e) {
+						// the other handlers still run
+						imap.reportError("handling " + type, e);
+						failed = true;
+					}
+				}
+				routed.count++;
+			}
+			if (!failed && m != null && !m.isExpunged()) {
+				routed.done = m;
+			}
+		}
+		imap.flushProcessed();
+		if (commit && routed.done != null) {
+			imap.commitProcessed(null, routed.done);
+		}
+		return routed;
+	}
+
+	// inner classes
+
+	/**
+	 * What route() did with a batch: the number of IMAPSN messages routed,
+	 * and the last message before the first one a handler failed on, null
+	 * if that was the first.
+	 */
+	static class Routed {
+		int count = 0;
+		Message done = null;
+	}
+
+}
@@ -28,20 +28,36 @@ or implied, of Jason Kantz.
 
 package com.github.imapsn;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.mail.BodyPart;
+import javax.mail.FetchProfile;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.UIDFolder;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.search.SubjectTerm;
 
@@ -49,44 +65,284 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.UID;
+import com.sun.mail.imap.protocol.UIDSet;
+import com.sun.mail.util.CRLFOutputStream;
+
 public class MimeUtil {
+
+    // attachments fetched by prefetchJson(), until read
+    static Map<Message, Map<String, JsonPart>> prefetched = new WeakHashMap<Message, Map<String, JsonPart>>();
+
     /**
      * Serialize JSON object into an attachment of a message with subject.
      * Overwrites any existing message having the same subject.
      */
     public static MimeMessage saveJsonData(ImapClientBase imap, Folder folder,
             JSONObject data, String subject, String filename) throws MessagingException {
+        return saveJsonData(imap, folder, null, data, subject, filename);
+    }
+
+    /**
+     * Like saveJsonData but finds the existing message through
+     * <code>index</code> instead of searching the folder, and keeps the index
+     * current. The replacement is appended first, with APPENDUID giving its
+     * UID on UIDPLUS servers, and the old message is queued on the index's
+     * ExpungeQueue rather than expunged right away. A null index falls back
+     * to a subject search and an immediate expunge.
+     */
+    public static MimeMessage saveJsonData(ImapClientBase imap, Folder folder,
+            PathIndex index, JSONObject data, String subject, String filename)
+            throws MessagingException {
 
         assert folder.isOpen();
 
         // delete existing message
-        MimeMessage mm = getFolderMessage(folder, subject);
-        if (mm != null) {
-            mm.setFlag(Flag.DELETED, true);
-            folder.expunge();
+        if (index == null) {
+            MimeMessage old = getFolderMessage(folder, subject);
+            if (old != null) {
+                old.setFlag(Flag.DELETED, true);
+                folder.expunge();
+            }
         }
 
         // create replacement/new message
-        mm = (MimeMessage) imap.getNewMessage();
-        mm.setFlag(Flag.SEEN, true);
-        try {
-			mm.setHeader("X-IMAPSN-Id", data.getString("id"));
-		} catch (JSONException e) {
-			throw new RuntimeException("all IMAPSN JSON objects must have an id.", e);
-		}
-
-        // attach the object
-        attachJsonObject(mm, subject, filename, data);
+        MimeMessage mm = createJsonMessage(imap, data, subject, filename);
 
         MimeMessage[] msgs = new MimeMessage[1];
         msgs[0] = mm;
-        folder.appendMessages(msgs);
+        if (index != null) {
+            long oldUid = index.getUid(subject);
+            AppendUID[] appendUids = index.getFolder().appendUIDMessages(msgs);
+            index.appended(subject, appendUids[0]);
+            if (oldUid != -1) {
+                index.getExpungeQueue().add(oldUid);
+            }
+        } else {
+            folder.appendMessages(msgs);
+        }
 
         mm.saveChanges();
 
         return mm;
     }
 
+    /**
+     * Save every object in <code>data</code>, keyed by path, to the folder of
+     * <code>index</code>. The path is the subject and its last segment the
+     * file name, as in ImapClient.put(). All messages go out in one
+     * MULTIAPPEND when the server supports it, and the messages they replace
+     * are queued on the index's ExpungeQueue.
+     */
+    public static void saveJsonData(ImapClientBase imap, PathIndex index,
+            Map<String, JSONObject> data) throws MessagingException {
+        if (data.isEmpty()) {
+            return;
+        }
+        String[] paths = data.keySet().toArray(new String[data.size()]);
+        MimeMessage[] msgs = new MimeMessage[paths.length];
+        long[] oldUids = new long[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            String[] parts = paths[i].split("/");
+            msgs[i] = createJsonMessage(imap, data.get(paths[i]), paths[i],
+                    parts[parts.length - 1]);
+            oldUids[i] = index.getUid(paths[i]);
+        }
+
+        AppendUID[] appendUids = appendMessages(index.getFolder(), msgs);
+        for (int i = 0; i < paths.length; i++) {
+            index.appended(paths[i], appendUids[i]);
+            if (oldUids[i] != -1) {
+                index.getExpungeQueue().add(oldUids[i]);
+            }
+        }
+    }
+
+    /**
+     * Return a new message, flagged \Seen, with <code>data</code> attached as
+     * <code>filename</code>.
+     */
+    public static MimeMessage createJsonMessage(ImapClientBase imap,
+            JSONObject data, String subject, String filename)
+            throws MessagingException {
+        MimeMessage mm = (MimeMessage) imap.getNewMessage();
+        mm.setFlag(Flag.SEEN, true);
+        try {
+            mm.setHeader("X-IMAPSN-Id", data.getString("id"));
+        } catch (JSONException e) {
+            throw new RuntimeException("all IMAPSN JSON objects must have an id.", e);
+        }
+
+        // attach the object
+        attachJsonObject(mm, subject, filename, data, imap.getImapsnClient()
+                .getCompressThreshold());
+        return mm;
+    }
+
+    static final Pattern APPENDUID = Pattern.compile(
+            "\\[APPENDUID (\\d+) ([0-9:,]+)\\]", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Append <code>msgs</code> to <code>folder</code> with a single MULTIAPPEND
+     * command (RFC 3502), or with appendUIDMessages() when the server lacks
+     * MULTIAPPEND. Return the AppendUIDs in message order; entries are null
+     * when the server did not report them.
+     */
+    public static AppendUID[] appendMessages(IMAPFolder folder,
+            MimeMessage[] msgs) throws MessagingException {
+        IMAPStore store = (IMAPStore) folder.getStore();
+        if (msgs.length < 2 || !store.hasCapability("MULTIAPPEND")) {
+            return folder.appendUIDMessages(msgs);
+        }
+
+        final Argument args = new Argument();
+        args.writeString(BASE64MailboxEncoder.encode(folder.getFullName()));
+        for (int i = 0; i < msgs.length; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try {
+                OutputStream os = new CRLFOutputStream(bos);
+                msgs[i].writeTo(os);
+                os.flush();
+            } catch (IOException e) {
+                throw new MessagingException("cannot write message", e);
+            }
+            args.writeAtom("(\\Seen)");
+            args.writeBytes(bos);
+        }
+        Response ok = (Response) folder
+                .doCommand(new IMAPFolder.ProtocolCommand() {
+                    public Object doCommand(IMAPProtocol p)
+                            throws ProtocolException {
+                        Response[] r = p.command("APPEND", args);
+                        p.notifyResponseHandlers(r);
+                        p.handleResult(r[r.length - 1]);
+                        return r[r.length - 1];
+                    }
+                });
+
+        AppendUID[] ret = new AppendUID[msgs.length];
+        Matcher m = APPENDUID.matcher(ok.toString());
+        if (m.find()) {
+            long uidValidity = Long.parseLong(m.group(1));
+            List<Long> uids = new ArrayList<Long>();
+            for (String range : m.group(2).split(",")) {
+                String[] ends = range.split(":");
+                long first = Long.parseLong(ends[0]);
+                long last = Long.parseLong(ends[ends.length - 1]);
+                for (long uid = first; uid <= last; uid++) {
+                    uids.add(uid);
+                }
+            }
+            if (uids.size() == msgs.length) {
+                for (int i = 0; i < msgs.length; i++) {
+                    ret[i] = new AppendUID(uidValidity, uids.get(i));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Return the UIDs of the messages in <code>folder</code> from
+     * <code>firstUid</code> on whose subject contains <code>subject</code>,
+     * with one UID SEARCH UID n:* SUBJECT.
+     */
+    public static long[] searchSubject(IMAPFolder folder, final long firstUid,
+            final String subject) throws MessagingException {
+        final List<Long> found = new ArrayList<Long>();
+        folder.doCommand(new IMAPFolder.ProtocolCommand() {
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                Argument args = new Argument();
+                args.writeAtom("UID");
+                args.writeAtom(firstUid + ":*");
+                args.writeAtom("SUBJECT");
+                args.writeString(subject);
+                Response[] r = p.command("UID SEARCH", args);
+                for (int i = 0; i < r.length - 1; i++) {
+                    if (r[i] instanceof IMAPResponse
+                            && ((IMAPResponse) r[i]).keyEquals("SEARCH")) {
+                        long uid;
+                        while ((uid = r[i].readLong()) != -1) {
+                            // n:* always matches the last message
+                            if (uid >= firstUid) {
+                                found.add(uid);
+                            }
+                        }
+                        r[i] = null;
+                    }
+                }
+                p.notifyResponseHandlers(r);
+                p.handleResult(r[r.length - 1]);
+                return null;
+            }
+        });
+        long[] ret = new long[found.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = found.get(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Fetch the full messages with the given UIDs from <code>folder</code> in
+     * one UID FETCH, without setting \Seen. Return them keyed by UID; UIDs
+     * that no longer exist are left out.
+     */
+    public static Map<Long, MimeMessage> fetchMessages(IMAPFolder folder,
+            Session session, long[] uids) throws MessagingException {
+        Map<Long, MimeMessage> ret = new HashMap<Long, MimeMessage>();
+        if (uids.length == 0) {
+            return ret;
+        }
+        final UIDSet[] set = UIDSet.createUIDSets(uids);
+        Response[] r = (Response[]) folder
+                .doCommand(new IMAPFolder.ProtocolCommand() {
+                    public Object doCommand(IMAPProtocol p)
+                            throws ProtocolException {
+                        Response[] r = p.command("UID FETCH "
+                                + UIDSet.toString(set) + " (BODY.PEEK[])",
+                                null);
+                        // the bodies are ours, pass on everything else
+                        List<Response> other = new ArrayList<Response>();
+                        for (int i = 0; i < r.length - 1; i++) {
+                            if (!(r[i] instanceof FetchResponse)) {
+                                other.add(r[i]);
+                            }
+                        }
+                        p.notifyResponseHandlers(other
+                                .toArray(new Response[other.size()]));
+                        p.handleResult(r[r.length - 1]);
+                        return r;
+                    }
+                });
+        for (int i = 0; i < r.length; i++) {
+            if (!(r[i] instanceof FetchResponse)) {
+                continue;
+            }
+            FetchResponse f = (FetchResponse) r[i];
+            UID uid = (UID) f.getItem(UID.class);
+            BODY body = (BODY) f.getItem(BODY.class);
+            if (uid != null && body != null) {
+                ret.put(uid.uid, new MimeMessage(session, body
+                        .getByteArrayInputStream()));
+            }
+        }
+        return ret;
+    }
+
     public static MimeMessage saveJsonData(ImapClientBase imap, Folder folder,
             JSONObject data, String filename) throws MessagingException {
         return saveJsonData(imap, folder, data, filename, filename);
@@ -101,6 +357,7 @@ public class MimeUtil {
         MimeMessage mm = null;
         SubjectTerm st = new SubjectTerm(subject);
         Message[] messages = folder.search(st);
+        prefetch(folder, messages);
         for (int i = 0; i < messages.length; i++) {
             if (!messages[i].getFlags().contains(Flag.DELETED)) {
                 mm = (MimeMessage) messages[i];
@@ -110,6 +367,166 @@ public class MimeUtil {
         return mm;
     }
     
+    /**
+     * Fetch what the IMAPSN message loops look at, for all of
+     * <code>messages</code> in one FETCH: ENVELOPE, FLAGS and, in a
+     * UIDFolder, the UID. Without it each message fetches these lazily, one
+     * round trip at a time. See prefetchJson() for the attachments.
+     */
+    public static void prefetch(Folder folder, Message[] messages)
+            throws MessagingException {
+        if (messages.length == 0) {
+            return;
+        }
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.ENVELOPE);
+        fp.add(FetchProfile.Item.FLAGS);
+        if (folder instanceof UIDFolder) {
+            fp.add(UIDFolder.FetchProfileItem.UID);
+        }
+        folder.fetch(messages, fp);
+    }
+
+    /**
+     * Fetch the application/json attachments of <code>messages</code>, all
+     * in <code>folder</code>, for the next getAttachedJson() on each: one
+     * UID FETCH of their BODYSTRUCTURE, then one UID FETCH BODY.PEEK[n] per
+     * part number in use, instead of two round trips per message. Messages
+     * that aren't flat multiparts are left to getAttachedJson().
+     */
+    public static void prefetchJson(IMAPFolder folder, Message[] messages)
+            throws MessagingException {
+        final Map<Long, Message> byUid = new HashMap<Long, Message>();
+        for (int i = 0; i < messages.length; i++) {
+            if (messages[i] instanceof IMAPMessage
+                    && messages[i].getFolder() == folder
+                    && !messages[i].isExpunged()) {
+                byUid.put(folder.getUID(messages[i]), messages[i]);
+            }
+        }
+        if (byUid.isEmpty()) {
+            return;
+        }
+        final long[] uids = new long[byUid.size()];
+        int n = 0;
+        for (Long uid : byUid.keySet()) {
+            uids[n++] = uid;
+        }
+        folder.doCommand(new IMAPFolder.ProtocolCommand() {
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                // part number -> UID -> attachment
+                Map<Integer, Map<Long, JsonPart>> bySection = new HashMap<Integer, Map<Long, JsonPart>>();
+                for (FetchResponse f : uidFetch(p, uids, "BODYSTRUCTURE")) {
+                    UID uid = (UID) f.getItem(UID.class);
+                    BODYSTRUCTURE bs = (BODYSTRUCTURE) f
+                            .getItem(BODYSTRUCTURE.class);
+                    if (uid == null || bs == null || !bs.isMulti()) {
+                        continue;
+                    }
+                    Map<Integer, JsonPart> parts = new HashMap<Integer, JsonPart>();
+                    for (int i = 0; i < bs.bodies.length; i++) {
+                        BODYSTRUCTURE part = bs.bodies[i];
+                        if (part.isMulti() || part.isNested()) {
+                            parts = null;
+                            break;
+                        }
+                        if ("application".equalsIgnoreCase(part.type)
+                                && "json".equalsIgnoreCase(part.subtype)
+                                && getFileName(part) != null) {
+                            JsonPart jp = new JsonPart();
+                            jp.part = part;
+                            parts.put(i + 1, jp);
+                        }
+                    }
+                    if (parts == null) {
+                        continue;
+                    }
+                    for (Map.Entry<Integer, JsonPart> e : parts.entrySet()) {
+                        if (!bySection.containsKey(e.getKey())) {
+                            bySection.put(e.getKey(),
+                                    new HashMap<Long, JsonPart>());
+                        }
+                        bySection.get(e.getKey()).put(uid.uid, e.getValue());
+                    }
+                }
+                for (Map.Entry<Integer, Map<Long, JsonPart>> e : bySection
+                        .entrySet()) {
+                    Map<Long, JsonPart> parts = e.getValue();
+                    long[] set = new long[parts.size()];
+                    int k = 0;
+                    for (Long uid : parts.keySet()) {
+                        set[k++] = uid;
+                    }
+                    for (FetchResponse f : uidFetch(p, set, "BODY.PEEK["
+                            + e.getKey() + "]")) {
+                        UID uid = (UID) f.getItem(UID.class);
+                        BODY body = (BODY) f.getItem(BODY.class);
+                        if (uid == null || body == null
+                                || !parts.containsKey(uid.uid)) {
+                            continue;
+                        }
+                        JsonPart jp = parts.get(uid.uid);
+                        jp.body = body;
+                        putPrefetched(byUid.get(uid.uid), getFileName(jp.part), jp);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Send <code>UID FETCH uids (items)</code> and return its FETCH
+     * responses; the other responses go to the usual handlers.
+     */
+    static List<FetchResponse> uidFetch(IMAPProtocol p, long[] uids,
+            String items) throws ProtocolException {
+        Response[] r = p.command("UID FETCH "
+                + UIDSet.toString(UIDSet.createUIDSets(uids)) + " (" + items
+                + ")", null);
+        List<FetchResponse> ret = new ArrayList<FetchResponse>();
+        List<Response> other = new ArrayList<Response>();
+        for (int i = 0; i < r.length - 1; i++) {
+            if (r[i] instanceof FetchResponse) {
+                ret.add((FetchResponse) r[i]);
+            } else {
+                other.add(r[i]);
+            }
+        }
+        p.notifyResponseHandlers(other.toArray(new Response[other.size()]));
+        p.handleResult(r[r.length - 1]);
+        return ret;
+    }
+
+    static void putPrefetched(Message m, String filename, JsonPart jp) {
+        synchronized (prefetched) {
+            Map<String, JsonPart> parts = prefetched.get(m);
+            if (parts == null) {
+                parts = new HashMap<String, JsonPart>();
+                prefetched.put(m, parts);
+            }
+            parts.put(filename, jp);
+        }
+    }
+
+    /**
+     * Return and forget the attachment <code>filename</code> of
+     * <code>m</code> fetched by prefetchJson(), or null.
+     */
+    static JsonPart takePrefetched(Message m, String filename) {
+        synchronized (prefetched) {
+            Map<String, JsonPart> parts = prefetched.get(m);
+            if (parts == null) {
+                return null;
+            }
+            JsonPart ret = parts.remove(filename);
+            if (parts.isEmpty()) {
+                prefetched.remove(m);
+            }
+            return ret;
+        }
+    }
+
     /**
      * Attach a JSON object to the MimeMessage using subject as the message
      * subject and as the attached file name.
@@ -121,11 +538,21 @@ public class MimeUtil {
 
     public static void attachJsonObject(MimeMessage mm, String subject, String filename, JSONObject jo)
             throws MessagingException {
+        attachJsonObject(mm, subject, filename, jo, -1);
+    }
+
+    /**
+     * Like attachJsonObject but gzips objects of at least
+     * <code>compressThreshold</code> bytes, see JsonDataSource.
+     */
+    public static void attachJsonObject(MimeMessage mm, String subject,
+            String filename, JSONObject jo, int compressThreshold)
+            throws MessagingException {
         mm.setSubject(subject);
         // add parts
         MimeMultipart mp = new MimeMultipart("mixed");
         BodyPart bp = new MimeBodyPart();
-        DataSource ds = new JsonDataSource(jo);
+        DataSource ds = new JsonDataSource(jo, compressThreshold);
         bp.setDataHandler(new DataHandler(ds));
         bp.setFileName(filename);
         mp.addBodyPart(bp);
@@ -140,6 +567,18 @@ public class MimeUtil {
     public static JSONObject getAttachedJson(MimeMessage mm, String filename)
             throws MessagingException, IOException, JSONException {
 
+        JsonPart jp = takePrefetched(mm, filename);
+        if (jp != null) {
+            return jp.toJson();
+        }
+        if (mm instanceof IMAPMessage && mm.getFolder() instanceof IMAPFolder
+                && mm.getFolder().isOpen()) {
+            jp = fetchJsonPart((IMAPMessage) mm, filename);
+            if (jp != null) {
+                return (jp.body == null) ? null : jp.toJson();
+            }
+        }
+
         JSONObject ret = null;
         Multipart mp = (Multipart) mm.getContent();
 
@@ -152,7 +591,11 @@ public class MimeUtil {
             if ((disp != null)
                     && (disp.equalsIgnoreCase(Part.ATTACHMENT) || disp
                             .equalsIgnoreCase(Part.INLINE)) && curfilename.compareTo(filename) == 0) {
-                InputStreamReader isr = new InputStreamReader(part.getInputStream(), "UTF8");
+                InputStream is = part.getInputStream();
+                if (isGzipped(new ContentType(part.getContentType()))) {
+                    is = new GZIPInputStream(is);
+                }
+                InputStreamReader isr = new InputStreamReader(is, "UTF8");
                 JSONTokener jtok = new JSONTokener(isr);
                 ret = new JSONObject(jtok);
                 break;
@@ -160,7 +603,84 @@ public class MimeUtil {
         }
         return ret;
     }
-    
 
+    /**
+     * Fetch the BODYSTRUCTURE of <code>mm</code> and then only the body of
+     * the attachment named <code>filename</code>, with BODY.PEEK[n]. Return
+     * null if the message isn't a flat multipart and has to be parsed
+     * whole; a JsonPart with a null body if there is no such attachment.
+     */
+    protected static JsonPart fetchJsonPart(IMAPMessage mm,
+            final String filename) throws MessagingException {
+        final int msgno = mm.getMessageNumber();
+        return (JsonPart) ((IMAPFolder) mm.getFolder())
+                .doCommand(new IMAPFolder.ProtocolCommand() {
+                    public Object doCommand(IMAPProtocol p)
+                            throws ProtocolException {
+                        BODYSTRUCTURE bs = p.fetchBodyStructure(msgno);
+                        if (bs == null || !bs.isMulti()) {
+                            return null;
+                        }
+                        JsonPart jp = new JsonPart();
+                        for (int i = 0; i < bs.bodies.length; i++) {
+                            BODYSTRUCTURE part = bs.bodies[i];
+                            if (part.isMulti() || part.isNested()) {
+                                return null;
+                            }
+                            if (filename.equals(getFileName(part))) {
+                                jp.part = part;
+                                jp.body = p.peekBody(msgno, Integer
+                                        .toString(i + 1));
+                                break;
+                            }
+                        }
+                        return jp;
+                    }
+                });
+    }
+
+    static boolean isGzipped(ContentType ct) {
+        return JsonDataSource.GZIP.equalsIgnoreCase(ct
+                .getParameter(JsonDataSource.ENCODING_PARAM));
+    }
+
+    static String getFileName(BODYSTRUCTURE part) {
+        if (part.disposition == null
+                || !(part.disposition.equalsIgnoreCase(Part.ATTACHMENT) || part.disposition
+                        .equalsIgnoreCase(Part.INLINE))) {
+            return null;
+        }
+        String ret = null;
+        if (part.dParams != null) {
+            ret = part.dParams.get("filename");
+        }
+        if (ret == null && part.cParams != null) {
+            ret = part.cParams.get("name");
+        }
+        return ret;
+    }
+
+    /**
+     * A body part located through BODYSTRUCTURE and its fetched body.
+     */
+    static class JsonPart {
+        BODYSTRUCTURE part;
+        BODY body;
+
+        JSONObject toJson() throws MessagingException, IOException,
+                JSONException {
+            InputStream is = body.getByteArrayInputStream();
+            if (part.encoding != null) {
+                is = MimeUtility.decode(is, part.encoding);
+            }
+            if (part.cParams != null
+                    && JsonDataSource.GZIP.equalsIgnoreCase(part.cParams
+                            .get(JsonDataSource.ENCODING_PARAM))) {
+                is = new GZIPInputStream(is);
+            }
+            return new JSONObject(new JSONTokener(new InputStreamReader(is,
+                    "UTF8")));
+        }
+    }
 
 }
@@ -1,9 +1,9 @@
 package com.github.imapsn;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.mail.MessagingException;
-import javax.mail.Flags.Flag;
 import javax.mail.internet.MimeMessage;
 
 import org.json.JSONException;
@@ -46,6 +46,22 @@ public class NewsItem {
 		}
 	}
 
+	/**
+	 * Return the news items published this month.
+	 */
+	public static List<JSONObject> getRecentNews(ImapClientBase imap)
+			throws MessagingException, IOException {
+		return imap.getNewsSegments().getRecent();
+	}
+
+	/**
+	 * Return the stored news item <code>id</code>, or null.
+	 */
+	public static JSONObject getNewsItem(ImapClientBase imap, String id)
+			throws MessagingException, IOException {
+		return imap.getNewsSegments().get(id);
+	}
+
 	public static void processNewsItem(ImapClientBase imap, MimeMessage mm) {
 		try {
 			JSONObject news = Util
@@ -61,7 +77,7 @@ public class NewsItem {
 			}
 			// TODO: probably shouldn't just delete this if news is null ...
 			// delete the message
-			mm.setFlag(Flag.DELETED, true);
+			imap.markProcessed(mm);
 
 		} catch (MessagingException e) {
 			// TODO Auto-generated catch block
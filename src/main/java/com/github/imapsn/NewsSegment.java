@@ -0,0 +1,259 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.activation.DataHandler;
+import javax.mail.BodyPart;
+import javax.mail.Flags.Flag;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.util.BASE64DecoderStream;
+
+/**
+ * The message format of a news segment: many news objects packed into one
+ * IMAPSN message. The message has two attachments:
+ * 
+ * <pre>
+ * index.json    {"id": path, "items": {newsId: [offset, length], ...}}
+ * items.ndjson  the news objects as UTF-8 JSON, one per line, base64
+ * </pre>
+ * 
+ * The offsets are into the decoded items. Base64 is written 57 bytes to a
+ * 76 character line plus CRLF, so the encoded lines covering an item can be
+ * computed and fetched alone with a partial BODY.PEEK[2]&lt;start.size&gt;.
+ */
+public class NewsSegment {
+
+	public static final String INDEX = "index.json";
+	public static final String ITEMS = "items.ndjson";
+	static final int LINE_BYTES = 57;
+	static final int LINE_CHARS = 78; // 76 + CRLF
+
+	/**
+	 * Return a new segment message at <code>path</code> holding
+	 * <code>items</code>.
+	 */
+	public static MimeMessage build(ImapClientBase imap, String path,
+			List<JSONObject> items) throws MessagingException {
+		MimeMessage mm = (MimeMessage) imap.getNewMessage();
+		build(mm, path, items);
+		return mm;
+	}
+
+	/**
+	 * Fill the new message <code>mm</code> as a segment at <code>path</code>.
+	 */
+	public static void build(MimeMessage mm, String path,
+			List<JSONObject> items) throws MessagingException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		JSONObject index = new JSONObject();
+		JSONObject offsets = new JSONObject();
+		try {
+			for (JSONObject item : items) {
+				byte[] b = (item.toString() + "\n").getBytes("UTF8");
+				JSONArray range = new JSONArray();
+				range.put(bos.size());
+				range.put(b.length - 1);
+				offsets.put(item.getString("id"), range);
+				bos.write(b);
+			}
+			index.put("id", path);
+			index.put("items", offsets);
+		} catch (JSONException e) {
+			throw new RuntimeException("all IMAPSN JSON objects must have an id.",
+					e);
+		} catch (IOException e) {
+			throw new RuntimeException("bug: in-memory write failed", e);
+		}
+
+		mm.setFlag(Flag.SEEN, true);
+		mm.setHeader("X-IMAPSN-Id", path);
+		mm.setSubject(path);
+		MimeMultipart mp = new MimeMultipart("mixed");
+		BodyPart bp = new MimeBodyPart();
+		bp.setDataHandler(new DataHandler(new JsonDataSource(index)));
+		bp.setFileName(INDEX);
+		mp.addBodyPart(bp);
+		bp = new MimeBodyPart();
+		bp.setDataHandler(new DataHandler(new ByteArrayDataSource(bos
+				.toByteArray(), "application/x-ndjson")));
+		bp.setFileName(ITEMS);
+		bp.setHeader("Content-Transfer-Encoding", "base64");
+		mp.addBodyPart(bp);
+		mm.setContent(mp);
+	}
+
+	/**
+	 * Return the index of a segment message, see getAttachedJson().
+	 */
+	public static JSONObject readIndex(MimeMessage mm)
+			throws MessagingException, IOException {
+		try {
+			return MimeUtil.getAttachedJson(mm, INDEX);
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return the news object <code>id</code> from the segment message
+	 * <code>mm</code>, whose index is <code>index</code>. Only the encoded
+	 * lines holding it are fetched. Return null if it isn't in the segment.
+	 */
+	public static JSONObject readItem(IMAPMessage mm, JSONObject index,
+			String id) throws MessagingException, IOException {
+		JSONArray range = index.optJSONObject("items").optJSONArray(id);
+		if (range == null) {
+			return null;
+		}
+		final long offset = range.optLong(0);
+		final int length = range.optInt(1);
+		final int msgno = mm.getMessageNumber();
+		final long[] fetch = encodedRange(offset, length);
+		BODY body = (BODY) ((IMAPFolder) mm.getFolder())
+				.doCommand(new IMAPFolder.ProtocolCommand() {
+					public Object doCommand(IMAPProtocol p)
+							throws ProtocolException {
+						return p.peekBody(msgno, "2", (int) fetch[0],
+								(int) fetch[1]);
+					}
+				});
+		if (body == null) {
+			return null;
+		}
+		return toJson(decodeRange(body.getByteArrayInputStream(), offset,
+				length));
+	}
+
+	/**
+	 * Return every news object in the segment message <code>mm</code>.
+	 */
+	public static List<JSONObject> readAll(MimeMessage mm)
+			throws MessagingException, IOException {
+		List<JSONObject> ret = new ArrayList<JSONObject>();
+		Multipart mp = (Multipart) mm.getContent();
+		for (int i = 0, n = mp.getCount(); i < n; i++) {
+			Part part = mp.getBodyPart(i);
+			if (ITEMS.equals(part.getFileName())) {
+				JSONObject index = readIndex(mm);
+				byte[] items = readFully(part.getInputStream());
+				JSONObject offsets = index.optJSONObject("items");
+				for (Iterator<?> it = offsets.keys(); it.hasNext();) {
+					JSONArray range = offsets.optJSONArray((String) it.next());
+					int offset = range.optInt(0);
+					int length = range.optInt(1);
+					byte[] b = new byte[length];
+					System.arraycopy(items, offset, b, 0, length);
+					ret.add(toJson(b));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Return the start and size of the base64 text that holds the decoded
+	 * bytes <code>[offset, offset + length)</code>, in whole lines.
+	 */
+	public static long[] encodedRange(long offset, int length) {
+		long first = offset / LINE_BYTES;
+		long last = (offset + length - 1) / LINE_BYTES;
+		return new long[] { first * LINE_CHARS,
+				(last - first + 1) * LINE_CHARS };
+	}
+
+	/**
+	 * Decode base64 text that starts at the line holding
+	 * <code>offset</code>, see encodedRange(), and return the
+	 * <code>length</code> bytes at <code>offset</code>.
+	 */
+	public static byte[] decodeRange(InputStream encoded, long offset,
+			int length) throws IOException {
+		InputStream is = new BASE64DecoderStream(encoded);
+		long skip = offset % LINE_BYTES;
+		while (skip > 0) {
+			long n = is.skip(skip);
+			if (n <= 0) {
+				throw new IOException("segment ends before offset " + offset);
+			}
+			skip -= n;
+		}
+		byte[] ret = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = is.read(ret, read, length - read);
+			if (n < 0) {
+				throw new IOException("segment ends inside item at " + offset);
+			}
+			read += n;
+		}
+		return ret;
+	}
+
+	static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = is.read(buf)) > 0) {
+			bos.write(buf, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	static JSONObject toJson(byte[] b) throws IOException {
+		try {
+			return new JSONObject(new JSONTokener(new String(b, "UTF8")));
+		} catch (JSONException e) {
+			throw new IOException("bad segment item: " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,648 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPMessage;
+
+/**
+ * Packs single /news/{id} objects into NewsSegment messages and finds news
+ * objects in any of their forms. News is partitioned by the month it was
+ * published in ("yyyy-MM"), or into the "undated" partition if it has no
+ * published date; each segment holds items of one partition and lives at
+ * <code>/news@segment/{month}/{n}</code>. Once a month is older than
+ * "news-retention-months" its segments are rolled up into one archive at
+ * <code>/news@archive/{month}/{n}</code>. An archive is itself a segment
+ * message, so reading one item fetches its index and that item only.
+ * 
+ * Where segment items and partitions live is kept in the data file
+ * <code>/news-segments.json</code>, written through a PatchLog (see
+ * "patch-log"):
+ * 
+ * <pre>
+ * {"id": ..., "next": n,
+ *  "items": {newsId: segmentPath, ...},
+ *  "partitions": {month: {"segments": [path, ...], "archive": path}, ...},
+ *  "singles": {newsId: month, ...}}
+ * </pre>
+ * 
+ * "singles" holds the partition of each single object once a packing run
+ * has read it, so that later runs group the singles without fetching them.
+ * 
+ * Archived items are dropped from "items" so the directory only grows with
+ * the retained months; they are found through the index of their month's
+ * archive.
+ * 
+ * The packer and the rollup run on the client's scheduler. New objects and
+ * directory entries are written before the objects they replace are
+ * deleted, so an interrupted run leaves duplicates, never gaps.
+ */
+public class NewsSegments implements ImapsnDataFile {
+
+	public static String FILENAME = "/news-segments.json";
+	public static String NEWS_PREFIX = "/news/";
+	public static String SEGMENT_PREFIX = "/news@segment/";
+	public static String ARCHIVE_PREFIX = "/news@archive/";
+	public static String UNDATED = "undated";
+	public static int MIN_PACK = 32;
+
+	ImapClient imap;
+	PatchLog patchLog;
+	JSONObject segments;
+	int segmentSize;
+	int retentionMonths;
+
+	public NewsSegments(ImapClient imap) throws MessagingException,
+			IOException {
+		this.imap = imap;
+		segmentSize = imap.getImapsnClient().getNewsSegmentSize();
+		retentionMonths = imap.getImapsnClient().getNewsRetentionMonths();
+		patchLog = new PatchLog(imap, FILENAME, imap.getImapsnClient()
+				.getPatchMaxCount(), imap.getImapsnClient().getPatchLog());
+		segments = patchLog.read();
+		if (segments == null) {
+			segments = new JSONObject();
+			try {
+				segments.put("id", imap.getAccountOwner().newId());
+				segments.put("next", 1);
+			} catch (JSONException e) {
+			}
+		}
+		try {
+			if (!segments.has("items")) {
+				segments.put("items", new JSONObject());
+			}
+			if (!segments.has("partitions")) {
+				segments.put("partitions", new JSONObject());
+			}
+			if (!segments.has("singles")) {
+				segments.put("singles", new JSONObject());
+			}
+		} catch (JSONException e) {
+		}
+		pruneArchived();
+	}
+
+	/**
+	 * Drop the archived items older versions kept in the directory.
+	 */
+	protected void pruneArchived() {
+		JSONObject dir = segments.optJSONObject("items");
+		List<String> archived = new ArrayList<String>();
+		for (Iterator<?> it = dir.keys(); it.hasNext();) {
+			String id = (String) it.next();
+			if (dir.optString(id).startsWith(ARCHIVE_PREFIX)) {
+				archived.add(id);
+			}
+		}
+		for (String id : archived) {
+			dir.remove(id);
+		}
+	}
+
+	// properties
+
+	public String getFilename() {
+		return FILENAME;
+	}
+
+	public JSONObject getJson() {
+		return segments;
+	}
+
+	/**
+	 * Return the path of the segment holding news item <code>id</code>, or
+	 * null if it is not in a segment. Archived items are not listed.
+	 */
+	public synchronized String getSegment(String id) {
+		return segments.optJSONObject("items").optString(id, null);
+	}
+
+	/**
+	 * Return the path of the archive of <code>month</code>, or null.
+	 */
+	public synchronized String getArchive(String month) {
+		JSONObject partition = segments.optJSONObject("partitions")
+				.optJSONObject(month);
+		return (partition == null) ? null : partition.optString("archive",
+				null);
+	}
+
+	/**
+	 * Return the month, "yyyy-MM", news item <code>item</code> belongs to:
+	 * that of its "published" date, or UNDATED if it has none.
+	 */
+	public static String getPartition(JSONObject item) {
+		String published = item.optString("published", "");
+		if (published.matches("\\d{4}-\\d{2}.*")) {
+			return published.substring(0, 7);
+		}
+		return UNDATED;
+	}
+
+	/**
+	 * Return the month <code>monthsAgo</code> months before this one.
+	 */
+	public static String getMonth(int monthsAgo) {
+		Calendar c = Calendar.getInstance();
+		c.add(Calendar.MONTH, -monthsAgo);
+		return String.format("%04d-%02d", c.get(Calendar.YEAR), c
+				.get(Calendar.MONTH) + 1);
+	}
+
+	// persisting back to IMAPSN
+
+	public void save() throws MessagingException {
+		imap.getFlushScheduler().markDirty(this);
+	}
+
+	public synchronized void write() throws MessagingException {
+		patchLog.write(segments);
+	}
+
+	// reading
+
+	/**
+	 * Return news item <code>id</code> whether it is stored alone, in a
+	 * segment or in an archive, or null. Archives are searched newest month
+	 * first; use get(id, month) when the month is known.
+	 */
+	public JSONObject get(String id) throws MessagingException, IOException {
+		JSONObject ret = getUnarchived(id);
+		if (ret != null) {
+			return ret;
+		}
+		for (String archive : getArchives()) {
+			ret = readArchived(archive, id);
+			if (ret != null) {
+				return ret;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return news item <code>id</code>, published in <code>month</code>,
+	 * or null. Only that month's archive is searched.
+	 */
+	public JSONObject get(String id, String month) throws MessagingException,
+			IOException {
+		JSONObject ret = getUnarchived(id);
+		if (ret != null) {
+			return ret;
+		}
+		String archive = getArchive(month);
+		return (archive == null) ? null : readArchived(archive, id);
+	}
+
+	protected JSONObject getUnarchived(String id) throws MessagingException,
+			IOException {
+		JSONObject ret = imap.get(NEWS_PREFIX + id);
+		if (ret != null) {
+			return ret;
+		}
+		String segment = getSegment(id);
+		return (segment == null) ? null : readItem(segment, id);
+	}
+
+	protected JSONObject readArchived(String archive, String id)
+			throws MessagingException, IOException {
+		if (isSegment(archive)) {
+			return readItem(archive, id);
+		}
+		JSONObject json = imap.get(archive);
+		return (json == null) ? null : findItem(json, id);
+	}
+
+	/**
+	 * Return every item in <code>archive</code>.
+	 */
+	protected List<JSONObject> readArchive(String archive)
+			throws MessagingException, IOException {
+		List<JSONObject> ret = new ArrayList<JSONObject>();
+		if (isSegment(archive)) {
+			MimeMessage mm = imap.getPathIndex(archive).getMessage(archive);
+			if (mm != null) {
+				ret.addAll(NewsSegment.readAll(mm));
+			}
+			return ret;
+		}
+		JSONObject old = imap.get(archive);
+		JSONArray items = (old == null) ? null : old.optJSONArray("items");
+		for (int i = 0; items != null && i < items.length(); i++) {
+			ret.add(items.optJSONObject(i));
+		}
+		return ret;
+	}
+
+	/**
+	 * False for the archives of older versions, single JSON objects at
+	 * <code>/news@archive/{month}</code>.
+	 */
+	static boolean isSegment(String archive) {
+		return archive.substring(ARCHIVE_PREFIX.length()).indexOf('/') != -1;
+	}
+
+	/**
+	 * Return the archive paths, newest month first.
+	 */
+	protected synchronized List<String> getArchives() {
+		List<String> months = new ArrayList<String>();
+		for (Iterator<?> it = segments.optJSONObject("partitions").keys(); it
+				.hasNext();) {
+			months.add((String) it.next());
+		}
+		Collections.sort(months, Collections.reverseOrder());
+		List<String> ret = new ArrayList<String>();
+		for (String month : months) {
+			String archive = getArchive(month);
+			if (archive != null) {
+				ret.add(archive);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Return the news items of the current month. Only the current
+	 * partition's segments and the items not yet packed are read.
+	 */
+	public List<JSONObject> getRecent() throws MessagingException,
+			IOException {
+		String month = getMonth(0);
+		List<JSONObject> ret = new ArrayList<JSONObject>();
+		for (String segment : getSegments(month)) {
+			MimeMessage mm = imap.getPathIndex(segment).getMessage(segment);
+			if (mm != null) {
+				ret.addAll(NewsSegment.readAll(mm));
+			}
+		}
+		List<String> singles = groupSingletons().get(month);
+		if (singles != null) {
+			ret.addAll(imap.getAll(singles).values());
+		}
+		return ret;
+	}
+
+	protected JSONObject readItem(String segment, String id)
+			throws MessagingException, IOException {
+		PathIndex index = imap.getPathIndex(segment);
+		ObjectCache cache = imap.getObjectCache();
+		long uid = index.getUid(segment);
+		if (uid == -1) {
+			return null;
+		}
+		String path = NEWS_PREFIX + id;
+		JSONObject ret = cache.get(path, uid, index.getUidValidity());
+		if (ret != null) {
+			return ret;
+		}
+		MimeMessage mm = index.getMessage(segment);
+		if (!(mm instanceof IMAPMessage)) {
+			return null;
+		}
+		JSONObject segmentIndex = cache.get(segment, uid, index
+				.getUidValidity());
+		if (segmentIndex == null) {
+			segmentIndex = NewsSegment.readIndex(mm);
+			if (segmentIndex == null) {
+				return null;
+			}
+			cache.put(segment, uid, index.getUidValidity(), segmentIndex);
+		}
+		ret = NewsSegment.readItem((IMAPMessage) mm, segmentIndex, id);
+		if (ret != null) {
+			cache.put(path, uid, index.getUidValidity(), ret);
+		}
+		return ret;
+	}
+
+	static JSONObject findItem(JSONObject archive, String id) {
+		JSONArray items = archive.optJSONArray("items");
+		for (int i = 0; items != null && i < items.length(); i++) {
+			JSONObject item = items.optJSONObject(i);
+			if (item != null && id.equals(item.optString("id"))) {
+				return item;
+			}
+		}
+		return null;
+	}
+
+	protected synchronized List<String> getSegments(String month) {
+		List<String> ret = new ArrayList<String>();
+		JSONObject partition = segments.optJSONObject("partitions")
+				.optJSONObject(month);
+		JSONArray list = (partition == null) ? null : partition
+				.optJSONArray("segments");
+		for (int i = 0; list != null && i < list.length(); i++) {
+			ret.add(list.optString(i));
+		}
+		return ret;
+	}
+
+	protected List<String> getSingletons() throws MessagingException {
+		List<String> ret = new ArrayList<String>();
+		for (String path : imap.getPathIndex(NEWS_PREFIX).getUids().keySet()) {
+			if (path.startsWith(NEWS_PREFIX) && !imap.isLocal(path)) {
+				ret.add(path);
+			}
+		}
+		return ret;
+	}
+
+	// packing
+
+	/**
+	 * Pack the single news objects in IMAPSN into segments of up to
+	 * "news-segment-size" items of one partition. Fewer than MIN_PACK items
+	 * of the current month or of the undated partition are left for a later
+	 * run; they are not fetched. Return the number of items packed.
+	 */
+	public int pack() throws MessagingException, IOException {
+		String current = getMonth(0);
+		Map<String, List<String>> byMonth = groupSingletons();
+		for (Iterator<Map.Entry<String, List<String>>> it = byMonth
+				.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, List<String>> e = it.next();
+			if ((e.getKey().equals(current) || e.getKey().equals(UNDATED))
+					&& e.getValue().size() < MIN_PACK) {
+				it.remove();
+			}
+		}
+		if (byMonth.isEmpty()) {
+			return 0;
+		}
+		int packed = 0;
+		for (Map.Entry<String, List<String>> e : byMonth.entrySet()) {
+			List<String> paths = e.getValue();
+			for (int i = 0; i < paths.size(); i += segmentSize) {
+				List<String> chunk = paths.subList(i, Math.min(i
+						+ segmentSize, paths.size()));
+				List<JSONObject> items = new ArrayList<JSONObject>(imap
+						.getAll(chunk).values());
+				if (!items.isEmpty()) {
+					packed += packSegment(e.getKey(), items);
+				}
+			}
+		}
+		return packed;
+	}
+
+	/**
+	 * Return the paths of the single news objects by partition. Partitions
+	 * come from "singles"; only singles not in it yet are fetched, and
+	 * recorded there. Entries of singles that are gone are dropped.
+	 */
+	protected Map<String, List<String>> groupSingletons()
+			throws MessagingException, IOException {
+		Map<String, List<String>> ret = new LinkedHashMap<String, List<String>>();
+		List<String> unknown = new ArrayList<String>();
+		boolean changed = false;
+		List<String> singletons = getSingletons();
+		synchronized (this) {
+			JSONObject singles = segments.optJSONObject("singles");
+			Set<String> ids = new HashSet<String>();
+			for (String path : singletons) {
+				String id = path.substring(NEWS_PREFIX.length());
+				ids.add(id);
+				String month = singles.optString(id, null);
+				if (month == null) {
+					unknown.add(path);
+				} else {
+					addPath(ret, month, path);
+				}
+			}
+			List<String> gone = new ArrayList<String>();
+			Iterator<?> it = singles.keys();
+			while (it.hasNext()) {
+				String id = (String) it.next();
+				if (!ids.contains(id)) {
+					gone.add(id);
+				}
+			}
+			for (String id : gone) {
+				singles.remove(id);
+				changed = true;
+			}
+		}
+		for (int i = 0; i < unknown.size(); i += segmentSize) {
+			List<String> chunk = unknown.subList(i, Math.min(i + segmentSize,
+					unknown.size()));
+			Map<String, JSONObject> items = imap.getAll(chunk);
+			for (Map.Entry<String, JSONObject> e : items.entrySet()) {
+				String month = getPartition(e.getValue());
+				addPath(ret, month, e.getKey());
+				synchronized (this) {
+					try {
+						segments.getJSONObject("singles").put(
+								e.getKey().substring(NEWS_PREFIX.length()),
+								month);
+					} catch (JSONException ex) {
+						throw new RuntimeException("bug: cannot update "
+								+ FILENAME, ex);
+					}
+				}
+				changed = true;
+			}
+		}
+		if (changed) {
+			save();
+		}
+		return ret;
+	}
+
+	static void addPath(Map<String, List<String>> byMonth, String month,
+			String path) {
+		List<String> paths = byMonth.get(month);
+		if (paths == null) {
+			paths = new ArrayList<String>();
+			byMonth.put(month, paths);
+		}
+		paths.add(path);
+	}
+
+	protected int packSegment(String month, List<JSONObject> items)
+			throws MessagingException, IOException {
+		String segment = SEGMENT_PREFIX + month + "/" + reserveNumber();
+		append(segment, NewsSegment.build(imap, segment, items));
+		synchronized (this) {
+			try {
+				JSONObject dir = segments.getJSONObject("items");
+				JSONObject singles = segments.getJSONObject("singles");
+				for (JSONObject item : items) {
+					dir.put(item.getString("id"), segment);
+					singles.remove(item.getString("id"));
+				}
+				getPartitionEntry(month).getJSONArray("segments").put(segment);
+			} catch (JSONException e) {
+				throw new RuntimeException("bug: cannot update " + FILENAME, e);
+			}
+		}
+		write();
+		for (JSONObject item : items) {
+			imap.deleteThrough(NEWS_PREFIX + item.optString("id"));
+		}
+		return items.size();
+	}
+
+	/**
+	 * Take the number of a new segment or archive. Messages are appended
+	 * without holding this object's lock, since appending takes the
+	 * ImapClient's; a number taken by a failed append is not reused.
+	 */
+	protected synchronized long reserveNumber() {
+		long n = segments.optLong("next", 1);
+		try {
+			segments.put("next", n + 1);
+		} catch (JSONException e) {
+			throw new RuntimeException("bug: cannot update " + FILENAME, e);
+		}
+		return n;
+	}
+
+	protected void append(String segment, MimeMessage mm)
+			throws MessagingException {
+		synchronized (imap) {
+			PathIndex index = imap.getPathIndex(segment);
+			AppendUID[] uids = MimeUtil.appendMessages(index.getFolder(),
+					new MimeMessage[] { mm });
+			index.appended(segment, uids[0]);
+		}
+	}
+
+	protected JSONObject getPartitionEntry(String month) throws JSONException {
+		JSONObject partitions = segments.getJSONObject("partitions");
+		JSONObject ret = partitions.optJSONObject(month);
+		if (ret == null) {
+			ret = new JSONObject();
+			ret.put("segments", new JSONArray());
+			partitions.put(month, ret);
+		}
+		return ret;
+	}
+
+	// retention
+
+	/**
+	 * Roll up the segments of every month older than
+	 * "news-retention-months" into that month's archive. The undated
+	 * partition is never rolled up. Return the number of months rolled up.
+	 */
+	public int rollup() throws MessagingException, IOException {
+		if (retentionMonths <= 0) {
+			return 0;
+		}
+		String oldest = getMonth(retentionMonths);
+		List<String> months = new ArrayList<String>();
+		synchronized (this) {
+			Iterator<?> it = segments.optJSONObject("partitions").keys();
+			while (it.hasNext()) {
+				String month = (String) it.next();
+				if (!month.equals(UNDATED) && month.compareTo(oldest) < 0
+						&& !getSegments(month).isEmpty()) {
+					months.add(month);
+				}
+			}
+		}
+		for (String month : months) {
+			rollup(month);
+		}
+		return months.size();
+	}
+
+	/**
+	 * Merge the segments of <code>month</code>, and its archive if there
+	 * already is one, into a new archive of that month. The archived items
+	 * leave the directory; the replaced segments and archive are deleted
+	 * once the new archive is recorded.
+	 */
+	protected void rollup(String month) throws MessagingException,
+			IOException {
+		String old = getArchive(month);
+		List<String> rolled = getSegments(month);
+		List<JSONObject> items = new ArrayList<JSONObject>();
+		if (old != null) {
+			items.addAll(readArchive(old));
+		}
+		for (String segment : rolled) {
+			MimeMessage mm = imap.getPathIndex(segment).getMessage(segment);
+			if (mm != null) {
+				items.addAll(NewsSegment.readAll(mm));
+			}
+		}
+		String path = ARCHIVE_PREFIX + month + "/" + reserveNumber();
+		append(path, NewsSegment.build(imap, path, items));
+		synchronized (this) {
+			try {
+				JSONObject dir = segments.getJSONObject("items");
+				for (JSONObject item : items) {
+					dir.remove(item.optString("id"));
+				}
+				JSONObject partition = getPartitionEntry(month);
+				partition.put("archive", path);
+				JSONArray left = new JSONArray();
+				for (String segment : getSegments(month)) {
+					if (!rolled.contains(segment)) {
+						left.put(segment);
+					}
+				}
+				partition.put("segments", left);
+			} catch (JSONException e) {
+				throw new RuntimeException("bug: cannot update " + FILENAME, e);
+			}
+		}
+		write();
+		for (String segment : rolled) {
+			imap.deleteThrough(segment);
+		}
+		if (old != null && isSegment(old)) {
+			imap.deleteThrough(old);
+		} else if (old != null) {
+			imap.delete(old);
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Bounded LRU cache of the JSON objects read from the IMAPSN folder. Each
+ * entry remembers the UID and UIDVALIDITY of the message it was parsed from
+ * and only counts as a hit while the path still maps to that message, so a
+ * replaced object or a rebuilt folder is never served from the cache.
+ * 
+ * Callers get a copy of the cached object and are free to modify it.
+ */
+public class ObjectCache {
+
+	public static int DEFAULT_CAPACITY = 256;
+
+	int capacity;
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+	LinkedHashMap<String, Entry> entries;
+
+	public ObjectCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ObjectCache(int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > ObjectCache.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	// properties
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	// cache interface
+
+	/**
+	 * Return a copy of the object cached for <code>path</code> if it was read
+	 * from message <code>uid</code> of a folder with
+	 * <code>uidValidity</code>, else null.
+	 */
+	public synchronized JSONObject get(String path, long uid, long uidValidity) {
+		Entry entry = entries.get(path);
+		if (entry == null || entry.uid != uid
+				|| entry.uidValidity != uidValidity) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return copy(entry.json);
+	}
+
+	public synchronized void put(String path, long uid, long uidValidity,
+			JSONObject json) {
+		entries.put(path, new Entry(uid, uidValidity, copy(json)));
+	}
+
+	public synchronized void remove(String path) {
+		entries.remove(path);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	// helpers
+
+	protected static JSONObject copy(JSONObject json) {
+		try {
+			return new JSONObject(json.toString());
+		} catch (JSONException e) {
+			throw new RuntimeException("bug: JSONObject did not round trip", e);
+		}
+	}
+
+	// inner classes
+
+	static class Entry {
+		long uid;
+		long uidValidity;
+		JSONObject json;
+
+		Entry(long uid, long uidValidity, JSONObject json) {
+			this.uid = uid;
+			this.uidValidity = uidValidity;
+			this.json = json;
+		}
+	}
+
+}
@@ -0,0 +1,397 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Stores a large data file as a base snapshot plus an append-only log of
+ * JSON Patch (RFC 6902) messages, so that a small change to the file costs a
+ * small message. The base lives at the file's own path and patches at
+ * <code>{path}@patch/{seq}</code>. The base records in
+ * <code>"patchSeq"</code> the last patch folded into it; read() applies the
+ * patches after that in order.
+ * 
+ * Once the log holds more than maxPatches patches, or more patch bytes than
+ * half the base, a compaction is run on the client's scheduler. It writes a
+ * new base and deletes the folded patches.
+ * 
+ * Clients that don't know about patches only see the base, so patching is
+ * off unless the account sets "patch-log". Without it every write stores
+ * the whole file as a base, with no <code>"patchSeq"</code> unless patches
+ * were read; read() still applies any patches it finds.
+ */
+public class PatchLog {
+
+	public static int DEFAULT_MAX_PATCHES = 32;
+	static final String SEQ = "patchSeq";
+	static final int PROBE_BATCH = 16;
+
+	ImapClientBase imap;
+	String path;
+	int maxPatches;
+	boolean patching;
+	JSONObject current = null; // last state read or written, without SEQ
+	long folded = 0;
+	long seq = 0;
+	long baseBytes = 0;
+	long patchBytes = 0;
+	boolean compacting = false;
+
+	public PatchLog(ImapClientBase imap, String path) {
+		this(imap, path, DEFAULT_MAX_PATCHES);
+	}
+
+	public PatchLog(ImapClientBase imap, String path, int maxPatches) {
+		this(imap, path, maxPatches, true);
+	}
+
+	public PatchLog(ImapClientBase imap, String path, int maxPatches,
+			boolean patching) {
+		this.imap = imap;
+		this.path = path;
+		this.maxPatches = maxPatches;
+		this.patching = patching;
+	}
+
+	// properties
+
+	public String getPath() {
+		return path;
+	}
+
+	public synchronized int getPatchCount() {
+		return (int) (seq - folded);
+	}
+
+	public String getPatchPath(long n) {
+		return path + "@patch/" + n;
+	}
+
+	// reading and writing
+
+	/**
+	 * Return the file with its patches applied, or null if it doesn't exist.
+	 */
+	public synchronized JSONObject read() throws MessagingException,
+			IOException {
+		JSONObject base = imap.get(path);
+		if (base == null) {
+			return null;
+		}
+		base = copy(base);
+		baseBytes = base.toString().length();
+		folded = base.optLong(SEQ, 0);
+		base.remove(SEQ);
+		seq = folded;
+		patchBytes = 0;
+
+		boolean more = true;
+		while (more) {
+			List<String> paths = new ArrayList<String>();
+			for (int i = 1; i <= PROBE_BATCH; i++) {
+				paths.add(getPatchPath(seq + i));
+			}
+			Map<String, JSONObject> patches = imap.getAll(paths);
+			for (String p : paths) {
+				JSONObject patch = patches.get(p);
+				if (patch == null) {
+					more = false;
+					break;
+				}
+				try {
+					apply(base, patch.getJSONArray("ops"));
+				} catch (JSONException e) {
+					throw new RuntimeException("bug: bad patch " + p, e);
+				}
+				patchBytes += patch.toString().length();
+				seq++;
+			}
+		}
+		current = base;
+		return copy(current);
+	}
+
+	/**
+	 * Store <code>json</code> as a patch against the last state read or
+	 * written, or as a new base if there is none yet or patching is off.
+	 */
+	public synchronized void write(JSONObject json) throws MessagingException {
+		if (current == null || !patching) {
+			writeBase(json);
+			return;
+		}
+		JSONArray ops = diff(current, json);
+		if (ops.length() == 0) {
+			return;
+		}
+		JSONObject patch = new JSONObject();
+		try {
+			patch.put("id", getPatchPath(seq + 1));
+			patch.put("ops", ops);
+		} catch (JSONException e) {
+			throw new RuntimeException("bug: cannot build patch", e);
+		}
+		imap.put(getPatchPath(seq + 1), patch);
+		seq++;
+		patchBytes += patch.toString().length();
+		current = copy(json);
+
+		if (!compacting
+				&& (getPatchCount() > maxPatches || patchBytes > baseBytes / 2)) {
+			compacting = true;
+			imap.getScheduler().execute(new Runnable() {
+				public void run() {
+					try {
+						compact();
+					} catch (MessagingException e) {
+						// retried after the next write
+						imap.reportError("compacting " + path, e);
+					} finally {
+						synchronized (PatchLog.this) {
+							compacting = false;
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Fold the patches into a new base and delete them.
+	 */
+	public synchronized void compact() throws MessagingException {
+		if (current == null || seq == folded) {
+			return;
+		}
+		imap.beginTransaction();
+		try {
+			long oldFolded = folded;
+			writeBase(current);
+			for (long n = oldFolded + 1; n <= folded; n++) {
+				imap.delete(getPatchPath(n));
+			}
+			imap.commitTransaction();
+		} finally {
+			imap.abortTransaction();
+		}
+	}
+
+	protected void writeBase(JSONObject json) throws MessagingException {
+		JSONObject base = copy(json);
+		try {
+			if (seq > 0) {
+				base.put(SEQ, seq);
+			}
+		} catch (JSONException e) {
+			throw new RuntimeException("bug: cannot write base", e);
+		}
+		imap.put(path, base);
+		current = copy(json);
+		folded = seq;
+		baseBytes = base.toString().length();
+		patchBytes = 0;
+	}
+
+	// JSON Patch
+
+	/**
+	 * Return the JSON Patch operations that turn <code>from</code> into
+	 * <code>to</code>. Objects are compared member by member; an array that
+	 * only grew at the end, or lost one element, gets add or remove
+	 * operations; any other changed value is replaced.
+	 */
+	public static JSONArray diff(JSONObject from, JSONObject to) {
+		JSONArray ops = new JSONArray();
+		diff("", from, to, ops);
+		return ops;
+	}
+
+	static void diff(String pointer, JSONObject from, JSONObject to,
+			JSONArray ops) {
+		Iterator<?> keys = from.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			if (!to.has(key)) {
+				ops.put(op("remove", pointer + "/" + escape(key), null));
+			}
+		}
+		keys = to.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			String child = pointer + "/" + escape(key);
+			Object b = to.opt(key);
+			if (!from.has(key)) {
+				ops.put(op("add", child, b));
+			} else {
+				diffValue(child, from.opt(key), b, ops);
+			}
+		}
+	}
+
+	static void diffValue(String pointer, Object a, Object b, JSONArray ops) {
+		if (a instanceof JSONObject && b instanceof JSONObject) {
+			diff(pointer, (JSONObject) a, (JSONObject) b, ops);
+		} else if (a instanceof JSONArray && b instanceof JSONArray) {
+			diffArray(pointer, (JSONArray) a, (JSONArray) b, ops);
+		} else if (!same(a, b)) {
+			ops.put(op("replace", pointer, b));
+		}
+	}
+
+	static void diffArray(String pointer, JSONArray a, JSONArray b,
+			JSONArray ops) {
+		int prefix = 0;
+		int n = Math.min(a.length(), b.length());
+		while (prefix < n && same(a.opt(prefix), b.opt(prefix))) {
+			prefix++;
+		}
+		if (prefix == a.length()) {
+			// appended
+			for (int i = prefix; i < b.length(); i++) {
+				ops.put(op("add", pointer + "/-", b.opt(i)));
+			}
+			return;
+		}
+		if (a.length() == b.length() + 1) {
+			boolean removed = true;
+			for (int i = prefix; i < b.length(); i++) {
+				if (!same(a.opt(i + 1), b.opt(i))) {
+					removed = false;
+					break;
+				}
+			}
+			if (removed) {
+				ops.put(op("remove", pointer + "/" + prefix, null));
+				return;
+			}
+		}
+		ops.put(op("replace", pointer, b));
+	}
+
+	/**
+	 * Apply JSON Patch add, remove and replace operations to
+	 * <code>target</code> in place.
+	 */
+	public static void apply(JSONObject target, JSONArray ops)
+			throws JSONException {
+		for (int i = 0; i < ops.length(); i++) {
+			JSONObject op = ops.getJSONObject(i);
+			String name = op.getString("op");
+			String[] tokens = op.getString("path").split("/", -1);
+			Object parent = target;
+			for (int j = 1; j < tokens.length - 1; j++) {
+				parent = child(parent, unescape(tokens[j]));
+			}
+			String last = unescape(tokens[tokens.length - 1]);
+			Object value = op.opt("value");
+			if (parent instanceof JSONObject) {
+				JSONObject o = (JSONObject) parent;
+				if (name.equals("remove")) {
+					o.remove(last);
+				} else {
+					o.put(last, value);
+				}
+			} else {
+				JSONArray a = (JSONArray) parent;
+				if (name.equals("add") && last.equals("-")) {
+					a.put(value);
+				} else if (name.equals("add")) {
+					insert(a, Integer.parseInt(last), value);
+				} else if (name.equals("remove")) {
+					a.remove(Integer.parseInt(last));
+				} else {
+					a.put(Integer.parseInt(last), value);
+				}
+			}
+		}
+	}
+
+	static Object child(Object parent, String token) throws JSONException {
+		if (parent instanceof JSONObject) {
+			return ((JSONObject) parent).get(token);
+		}
+		return ((JSONArray) parent).get(Integer.parseInt(token));
+	}
+
+	static void insert(JSONArray a, int index, Object value)
+			throws JSONException {
+		for (int i = a.length(); i > index; i--) {
+			a.put(i, a.get(i - 1));
+		}
+		a.put(index, value);
+	}
+
+	static JSONObject op(String name, String pointer, Object value) {
+		JSONObject op = new JSONObject();
+		try {
+			op.put("op", name);
+			op.put("path", pointer);
+			if (value != null) {
+				op.put("value", value);
+			}
+		} catch (JSONException e) {
+			throw new RuntimeException("bug: cannot build patch operation", e);
+		}
+		return op;
+	}
+
+	static boolean same(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return a.toString().equals(b.toString());
+	}
+
+	static String escape(String token) {
+		return token.replace("~", "~0").replace("/", "~1");
+	}
+
+	static String unescape(String token) {
+		return token.replace("~1", "/").replace("~0", "~");
+	}
+
+	static JSONObject copy(JSONObject json) {
+		try {
+			return new JSONObject(json.toString());
+		} catch (JSONException e) {
+			throw new RuntimeException("bug: cannot copy JSON", e);
+		}
+	}
+
+}
@@ -0,0 +1,392 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+
+package com.github.imapsn;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags.Flag;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.SubjectTerm;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+
+/**
+ * Directory of the IMAPSN folder mapping each path (message subject) to the
+ * UID of the message that currently holds it. The directory is built from a
+ * single FETCH of ENVELOPE, FLAGS and UID when the folder is opened and is
+ * kept current as messages are appended and expunged, so looking up a path
+ * never needs a server side search.
+ */
+public class PathIndex {
+
+	IMAPFolder folder;
+	ExpungeQueue expungeQueue;
+	long uidValidity = -1;
+	FolderStatus status = null; // when the directory was last in sync
+	Map<String, Long> uids = new HashMap<String, Long>();
+
+	public PathIndex(IMAPFolder folder) {
+		this(folder, ExpungeQueue.DEFAULT_BATCH_SIZE);
+	}
+
+	public PathIndex(IMAPFolder folder, int expungeBatchSize) {
+		this.folder = folder;
+		this.expungeQueue = new ExpungeQueue(folder, expungeBatchSize);
+	}
+
+	// properties
+
+	public IMAPFolder getFolder() {
+		return folder;
+	}
+
+	public ExpungeQueue getExpungeQueue() {
+		return expungeQueue;
+	}
+
+	public synchronized long getUidValidity() {
+		return uidValidity;
+	}
+
+	/**
+	 * The FolderStatus the directory was last in sync with, or null.
+	 */
+	public synchronized FolderStatus getStatus() {
+		return status;
+	}
+
+	public synchronized int size() {
+		return uids.size();
+	}
+
+	// building the index
+
+	/**
+	 * (Re)build the directory with one FETCH over the whole folder.
+	 */
+	public synchronized void load() throws MessagingException {
+		uids.clear();
+		uidValidity = folder.getUIDValidity();
+		Message[] messages = folder.getMessages();
+		FetchProfile fp = new FetchProfile();
+		fp.add(FetchProfile.Item.ENVELOPE);
+		fp.add(FetchProfile.Item.FLAGS);
+		fp.add(UIDFolder.FetchProfileItem.UID);
+		folder.fetch(messages, fp);
+		long uidNext = folder.getUIDNext();
+		for (int i = 0; i < messages.length; i++) {
+			add(messages[i]);
+			uidNext = Math.max(uidNext, folder.getUID(messages[i]) + 1);
+		}
+		status = new FolderStatus(uidValidity, uidNext, messages.length, -1);
+	}
+
+	/**
+	 * Add a message whose ENVELOPE, FLAGS and UID have been fetched. A newer
+	 * message (higher UID) for the same path wins.
+	 */
+	protected void add(Message message) throws MessagingException {
+		if (message.isExpunged() || message.getFlags().contains(Flag.DELETED)) {
+			return;
+		}
+		String path = message.getSubject();
+		if (path != null) {
+			long uid = folder.getUID(message);
+			Long old = uids.get(path);
+			if (old == null || old.longValue() < uid) {
+				uids.put(path, uid);
+			}
+		}
+	}
+
+	/**
+	 * Build the directory from the state <code>mirror</code> saved at the end
+	 * of the last session, asking the server only for what changed since:
+	 * 
+	 * <ul>
+	 * <li>UIDVALIDITY changed: the mirror is cleared and the folder is loaded
+	 * in full.</li>
+	 * <li>UIDNEXT, MESSAGES and HIGHESTMODSEQ unchanged: the saved directory is
+	 * used as is.</li>
+	 * <li>otherwise a UID SEARCH for the undeleted messages below the saved
+	 * UIDNEXT drops what was removed, and one FETCH of the UIDs from the saved
+	 * UIDNEXT on picks up what was appended.</li>
+	 * </ul>
+	 */
+	public synchronized void load(FolderMirror mirror)
+			throws MessagingException, IOException {
+		FolderStatus last = mirror.getStatus();
+		FolderStatus now = FolderStatus.fetch(folder);
+		if (last.uidValidity != now.uidValidity || last.uidNext <= 0) {
+			mirror.clear(now.uidValidity);
+			load();
+		} else if (last.isUnchanged(now)) {
+			uids.clear();
+			uids.putAll(mirror.getUids());
+			uidValidity = now.uidValidity;
+		} else {
+			uids.clear();
+			uids.putAll(mirror.getUids());
+			uidValidity = now.uidValidity;
+			sync(last, now);
+		}
+		status = now;
+		mirror.setStatus(now);
+	}
+
+	/**
+	 * Continue on <code>folder</code>, this index's folder reopened after
+	 * its connection dropped, keeping the directory. Its FolderStatus tells
+	 * whether anything changed while it was away; if so the directory is
+	 * brought up to date as in load(FolderMirror). Return false if the
+	 * UIDVALIDITY changed and the folder had to be loaded in full.
+	 */
+	public synchronized boolean resume(IMAPFolder folder)
+			throws MessagingException {
+		this.folder = folder;
+		FolderStatus now = FolderStatus.fetch(folder);
+		if (status == null || status.uidValidity != now.uidValidity) {
+			expungeQueue.reset(folder, false);
+			load();
+			return false;
+		}
+		expungeQueue.reset(folder, true);
+		if (!status.isUnchanged(now)) {
+			sync(status, now);
+		}
+		status = now;
+		return true;
+	}
+
+	/**
+	 * Bring the directory and its FolderStatus up to date with the open
+	 * folder, as resume() does, so that a mirror saved afterwards records the
+	 * UIDNEXT and MESSAGES left by this session's own appends and expunges.
+	 * Nothing changes if the folder is closed or its UIDVALIDITY changed; the
+	 * next load(FolderMirror) sorts that out.
+	 */
+	public synchronized void refresh() throws MessagingException {
+		if (!folder.isOpen()) {
+			return;
+		}
+		// a NOOP, so that no EXPUNGE is pending
+		folder.getMessageCount();
+		FolderStatus now = FolderStatus.select(folder);
+		if (status == null || status.uidValidity != now.uidValidity) {
+			return;
+		}
+		if (!status.isUnchanged(now)) {
+			sync(status, now);
+		}
+		status = now;
+	}
+
+	/**
+	 * Bring a directory that was in sync at <code>last</code> up to
+	 * <code>now</code>: a UID SEARCH for the undeleted messages below the old
+	 * UIDNEXT drops what was removed, and one FETCH of the UIDs from the old
+	 * UIDNEXT on picks up what was appended.
+	 */
+	protected void sync(FolderStatus last, FolderStatus now)
+			throws MessagingException {
+		Set<Long> live = searchUndeleted(last.uidNext - 1);
+		for (Iterator<Long> it = uids.values().iterator(); it.hasNext();) {
+			if (!live.contains(it.next())) {
+				it.remove();
+			}
+		}
+		if (now.uidNext > last.uidNext) {
+			Message[] added = folder.getMessagesByUID(last.uidNext,
+					UIDFolder.LASTUID);
+			FetchProfile fp = new FetchProfile();
+			fp.add(FetchProfile.Item.ENVELOPE);
+			fp.add(FetchProfile.Item.FLAGS);
+			fp.add(UIDFolder.FetchProfileItem.UID);
+			folder.fetch(added, fp);
+			for (int i = 0; i < added.length; i++) {
+				// "n:*" always matches the last message, even below n
+				if (folder.getUID(added[i]) >= last.uidNext) {
+					add(added[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the UIDs up to <code>maxUid</code> that are not flagged \Deleted.
+	 */
+	protected Set<Long> searchUndeleted(final long maxUid)
+			throws MessagingException {
+		final Set<Long> live = new HashSet<Long>();
+		if (maxUid < 1) {
+			return live;
+		}
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol p) throws ProtocolException {
+				Response[] r = p.command("UID SEARCH UID 1:" + maxUid
+						+ " UNDELETED", null);
+				for (int i = 0; i < r.length - 1; i++) {
+					if (r[i] instanceof IMAPResponse
+							&& ((IMAPResponse) r[i]).keyEquals("SEARCH")) {
+						long uid;
+						while ((uid = r[i].readLong()) != -1) {
+							live.add(uid);
+						}
+						r[i] = null;
+					}
+				}
+				p.notifyResponseHandlers(r);
+				p.handleResult(r[r.length - 1]);
+				return null;
+			}
+		});
+		return live;
+	}
+
+	// lookups
+
+	/**
+	 * Return a copy of the path to UID directory.
+	 */
+	public synchronized Map<String, Long> getUids() {
+		return new HashMap<String, Long>(uids);
+	}
+
+	/**
+	 * Return the UID of the message holding <code>path</code> or -1 if there
+	 * is none.
+	 */
+	public synchronized long getUid(String path) {
+		Long uid = uids.get(path);
+		return (uid == null) ? -1 : uid.longValue();
+	}
+
+	public synchronized boolean contains(String path) {
+		return uids.containsKey(path);
+	}
+
+	/**
+	 * Return the message holding <code>path</code> or null if not found. A
+	 * path whose message has been expunged by another client is dropped.
+	 */
+	public synchronized MimeMessage getMessage(String path)
+			throws MessagingException {
+		Long uid = uids.get(path);
+		if (uid == null) {
+			return null;
+		}
+		Message message = folder.getMessageByUID(uid.longValue());
+		if (message == null) {
+			uids.remove(path);
+		}
+		return (MimeMessage) message;
+	}
+
+	// keeping the index current
+
+	public synchronized void put(String path, long uid) {
+		uids.put(path, uid);
+	}
+
+	public synchronized void remove(String path) {
+		uids.remove(path);
+	}
+
+	/**
+	 * Drop <code>path</code> from the directory and queue the message that
+	 * held it for expunging.
+	 */
+	public synchronized void retire(String path) throws MessagingException {
+		Long uid = uids.remove(path);
+		if (uid != null) {
+			expungeQueue.add(uid.longValue());
+		}
+	}
+
+	/**
+	 * Index the message appended for <code>path</code>, using the APPENDUID
+	 * returned by a UIDPLUS server when there is one.
+	 */
+	public synchronized void appended(String path, AppendUID appendUid)
+			throws MessagingException {
+		if (appendUid != null && appendUid.uidvalidity == uidValidity) {
+			uids.put(path, appendUid.uid);
+		} else {
+			appended(path);
+		}
+	}
+
+	/**
+	 * Index the message just appended for <code>path</code>. Appends go over
+	 * the store connection so the open folder is pinged first to learn about
+	 * the new message, which should be the last one in the folder. Falls back
+	 * to a subject search if it isn't.
+	 */
+	public synchronized void appended(String path) throws MessagingException {
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol p) throws ProtocolException {
+				p.noop();
+				return null;
+			}
+		});
+		int n = folder.getMessageCount();
+		if (n > 0) {
+			Message[] last = { folder.getMessage(n) };
+			FetchProfile fp = new FetchProfile();
+			fp.add(FetchProfile.Item.ENVELOPE);
+			fp.add(UIDFolder.FetchProfileItem.UID);
+			folder.fetch(last, fp);
+			if (path.equals(last[0].getSubject())) {
+				uids.put(path, folder.getUID(last[0]));
+				return;
+			}
+		}
+		Message[] found = folder.search(new SubjectTerm(path));
+		for (int i = 0; i < found.length; i++) {
+			if (path.equals(found[i].getSubject())) {
+				add(found[i]);
+			}
+		}
+	}
+
+}
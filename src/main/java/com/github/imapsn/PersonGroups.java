@@ -43,6 +43,7 @@ public class PersonGroups implements ImapsnDataFile {
 	public static String FILENAME = "/person-groups.json";
 	JSONObject personGroups;
 	ImapClientBase imap;
+	PatchLog patchLog;
 
 	public PersonGroups(JSONObject PersonGroups) {
 		this.personGroups = PersonGroups;
@@ -50,8 +51,10 @@ public class PersonGroups implements ImapsnDataFile {
 
 	public PersonGroups(ImapClientBase imap) throws ReadFailure {
 		this.imap = imap;
+		patchLog = new PatchLog(imap, getFilename(), imap.getImapsnClient()
+				.getPatchMaxCount(), imap.getImapsnClient().getPatchLog());
 		try {
-			personGroups = imap.get(getFilename());
+			personGroups = patchLog.read();
 			if (personGroups == null) {
 				personGroups = new JSONObject();
 				personGroups.put("id", imap.getAccountOwner().newId());
@@ -78,7 +81,17 @@ public class PersonGroups implements ImapsnDataFile {
 	// persisting back to IMAPSN
 
 	public void save() throws MessagingException {
-		imap.put(getFilename(), personGroups);
+		imap.getFlushScheduler().markDirty(this);
+	}
+
+	/**
+	 * Write the changes since the last write as a patch if the account sets
+	 * "patch-log", else the whole file, see PatchLog. Every client of the
+	 * account must read patches before "patch-log" is turned on; older
+	 * ones would only see the base.
+	 */
+	public void write() throws MessagingException {
+		patchLog.write(personGroups);
 	}
 
 	// mailing to a group
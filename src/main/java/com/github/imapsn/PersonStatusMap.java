@@ -31,42 +31,55 @@ package com.github.imapsn;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.mail.MessagingException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Status of each person the account owner corresponds with, stored one
+ * message per person as <code>/status/{person.id}</code>. An entry is read
+ * from IMAPSN the first time it is used, and saving writes only the entries
+ * that changed, so a status change costs one small object instead of the
+ * whole map.
+ * 
+ * A monolithic <code>/person-status-map.json</code> from an older client is
+ * migrated to the sharded layout when the map is opened.
+ */
 public class PersonStatusMap implements ImapsnDataFile {
 
-	protected static String FILENAME = "/person-status-map.json";
-	protected JSONObject statusMap = null;
+	protected static String PREFIX = "/status/";
+	protected static String LEGACY_FILENAME = "/person-status-map.json";
+	protected JSONObject statusMap = new JSONObject();
+	protected Set<String> dirty = new LinkedHashSet<String>();
+	protected Set<String> deleted = new LinkedHashSet<String>();
 	protected ImapClientBase imap;
 
 	public PersonStatusMap(ImapClientBase imap)
 			throws EPersonStatusMapReadError {
 		this.imap = imap;
 		try {
-			statusMap = imap.get(getFilename());
-			if (statusMap == null) {
-				statusMap = new JSONObject();
-				statusMap.put("id", imap.getAccountOwner().newId());
-			}
-
+			migrate();
 		} catch (MessagingException e) {
 			throw new EPersonStatusMapReadError(e);
 		} catch (IOException e) {
 			throw new EPersonStatusMapReadError(e);
-		} catch (JSONException e) {
 		}
 	}
 
 	// properties
 
 	public String getFilename() {
-		return FILENAME;
+		return PREFIX;
 	}
 
+	/**
+	 * Return the entries that have been loaded or set so far.
+	 */
 	public JSONObject getJson() {
 		return statusMap;
 	}
@@ -74,7 +87,51 @@ public class PersonStatusMap implements ImapsnDataFile {
 	// persisting back to IMAPSN
 
 	public void save() throws MessagingException {
-		imap.put(getFilename(), statusMap);
+		imap.getFlushScheduler().markDirty(this);
+	}
+
+	public void write() throws MessagingException {
+		for (Iterator<String> it = deleted.iterator(); it.hasNext();) {
+			imap.delete(PREFIX + it.next());
+			it.remove();
+		}
+		for (Iterator<String> it = dirty.iterator(); it.hasNext();) {
+			String personId = it.next();
+			try {
+				JSONObject shard = new JSONObject(statusMap.getJSONObject(
+						personId).toString());
+				shard.put("id", personId);
+				imap.put(PREFIX + personId, shard);
+			} catch (JSONException e) {
+				throw new RuntimeException("bug: person-status-map entry "
+						+ personId, e);
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Move the entries of a monolithic person-status-map.json into /status/
+	 * shards and delete it. The shards are written before the old file is
+	 * deleted so an interrupted migration is simply redone.
+	 */
+	protected void migrate() throws MessagingException, IOException {
+		JSONObject legacy = imap.get(LEGACY_FILENAME);
+		if (legacy != null) {
+			for (Iterator<?> it = legacy.keys(); it.hasNext();) {
+				String personId = (String) it.next();
+				JSONObject status = legacy.optJSONObject(personId);
+				if (status != null) {
+					try {
+						statusMap.put(personId, status);
+						dirty.add(personId);
+					} catch (JSONException e) {
+					}
+				}
+			}
+			write();
+			imap.delete(LEGACY_FILENAME);
+		}
 	}
 
 	// status interface
@@ -89,11 +146,19 @@ public class PersonStatusMap implements ImapsnDataFile {
 				status.put("last-received", lastReceived);
 			}
 			statusMap.put(personId, status);
+			dirty.add(personId);
+			deleted.remove(personId);
 		} catch (JSONException e) {
 		}
 	}
 
+	public boolean hasEntry(String personId) {
+		load(personId);
+		return statusMap.has(personId);
+	}
+
 	public JSONObject getStatus(String personId) {
+		load(personId);
 		try {
 			return statusMap.getJSONObject(personId);
 		} catch (JSONException e) {
@@ -108,7 +173,35 @@ public class PersonStatusMap implements ImapsnDataFile {
 	}
 
 	public void deleteEntry(String personId) {
-		statusMap.remove(personId);
+		load(personId);
+		if (statusMap.remove(personId) != null) {
+			dirty.remove(personId);
+			deleted.add(personId);
+		}
+	}
+
+	/**
+	 * Read the entry for <code>personId</code> from IMAPSN unless it is
+	 * already loaded or was deleted.
+	 */
+	protected void load(String personId) {
+		if (statusMap.has(personId) || deleted.contains(personId)) {
+			return;
+		}
+		try {
+			JSONObject shard = imap.get(PREFIX + personId);
+			if (shard != null) {
+				shard.remove("id");
+				statusMap.put(personId, shard);
+			}
+		} catch (MessagingException e) {
+			throw new RuntimeException("could not read status of " + personId,
+					e);
+		} catch (IOException e) {
+			throw new RuntimeException("could not read status of " + personId,
+					e);
+		} catch (JSONException e) {
+		}
 	}
 
 	// inner classes
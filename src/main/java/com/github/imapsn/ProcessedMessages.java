@@ -0,0 +1,236 @@
+/*
+Copyright 2010 Jason Kantz. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are
+permitted provided that the following conditions are met:
+
+   1. Redistributions of source code must retain the above copyright notice, this list of
+      conditions and the following disclaimer.
+
+   2. Redistributions in binary form must reproduce the above copyright notice, this list
+      of conditions and the following disclaimer in the documentation and/or other materials
+      provided with the distribution.
+
+THIS SOFTWARE IS PROVIDED BY JASON KANTZ ``AS IS'' AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL JASON KANTZ OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+The views and conclusions contained in the software and documentation are those of the
+authors and should not be interpreted as representing official policies, either expressed
+or implied, of Jason Kantz.
+ */
+package com.github.imapsn;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UIDSet;
+
+/**
+ * Collects incoming messages that have been handled and removes them from
+ * their folder in bulk on flush(), instead of one STORE per message.
+ * 
+ * Without a "processed-folder" the messages get one
+ * <code>UID STORE set +FLAGS.SILENT (\Deleted)</code> per folder. With one
+ * they are moved there: one <code>UID MOVE</code> on servers with MOVE
+ * (RFC 6851), else a UID COPY followed by the STORE. Unless
+ * "defer-expunge" is set the deleted messages are then expunged, with
+ * UID EXPUNGE of just that set on UIDPLUS servers; deferred, they go when
+ * the folder is closed.
+ * 
+ * Messages whose folder was closed before the flush, e.g. by an
+ * InboxWatcher restart, are flushed through a folder leased for the
+ * purpose. The processed folder is looked up, and created, only once.
+ */
+public class ProcessedMessages {
+
+	ImapClient imap;
+	Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	String targetName = null; // full name of the processed folder
+
+	public ProcessedMessages(ImapClient imap) {
+		this.imap = imap;
+	}
+
+	public synchronized int size() {
+		int ret = 0;
+		for (Pending p : pending.values()) {
+			ret += p.uids.size();
+		}
+		return ret;
+	}
+
+	/**
+	 * Mark <code>m</code> as handled. A DetachedMessage stands for its
+	 * source message. Messages that aren't in an IMAP folder are flagged
+	 * \Deleted right away.
+	 */
+	public synchronized void add(Message m) throws MessagingException {
+		IMAPFolder f;
+		long uid;
+		if (m instanceof DetachedMessage) {
+			f = ((DetachedMessage) m).getSourceFolder();
+			uid = ((DetachedMessage) m).getSourceUid();
+		} else if (m.getFolder() instanceof IMAPFolder) {
+			f = (IMAPFolder) m.getFolder();
+			uid = f.getUID(m);
+		} else {
+			m.setFlag(Flag.DELETED, true);
+			return;
+		}
+		Pending p = pending.get(f.getFullName());
+		if (p == null) {
+			p = new Pending(f, f.getUIDValidity());
+			pending.put(f.getFullName(), p);
+		}
+		p.uids.add(uid);
+	}
+
+	/**
+	 * Remove or move the collected messages, one batch per folder. A folder
+	 * that has been closed since is leased again for the flush. Batches
+	 * that fail stay pending for the next flush; the first failure is
+	 * thrown once the other folders are done.
+	 */
+	public void flush() throws MessagingException {
+		Map<String, Pending> batch;
+		synchronized (this) {
+			batch = pending;
+			pending = new LinkedHashMap<String, Pending>();
+		}
+		boolean expunge = !imap.getImapsnClient().getDeferExpunge();
+		MessagingException failure = null;
+		for (Pending p : batch.values()) {
+			try {
+				flush(p, expunge);
+			} catch (MessagingException e) {
+				retry(p);
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	protected void flush(Pending p, boolean expunge) throws MessagingException {
+		long[] all = new long[p.uids.size()];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = p.uids.get(i);
+		}
+		if (p.folder.isOpen()) {
+			flush(p.folder, all, getTargetName(p.folder), expunge);
+			return;
+		}
+		IMAPFolder folder = imap.leaseFolder(p.folder.getFullName());
+		try {
+			// the UIDs mean nothing under a new UIDVALIDITY
+			if (folder.getUIDValidity() == p.uidValidity) {
+				flush(folder, all, getTargetName(folder), expunge);
+			}
+		} finally {
+			imap.releaseFolder(folder);
+		}
+	}
+
+	protected synchronized void retry(Pending p) {
+		Pending later = pending.get(p.folder.getFullName());
+		if (later == null) {
+			pending.put(p.folder.getFullName(), p);
+		} else if (later.uidValidity == p.uidValidity) {
+			later.uids.addAll(p.uids);
+		}
+		// else the folder has a new UIDVALIDITY and the UIDs are stale
+	}
+
+	/**
+	 * Return the full name of the "processed-folder", creating it the first
+	 * time, or null if there is none.
+	 */
+	protected synchronized String getTargetName(IMAPFolder folder)
+			throws MessagingException {
+		String target = imap.getImapsnClient().getProcessedFolder();
+		if (target == null || targetName != null) {
+			return (target == null) ? null : targetName;
+		}
+		Folder t = folder.getStore().getFolder("INBOX").getFolder(target);
+		if (!t.exists() && !t.create(Folder.HOLDS_MESSAGES)) {
+			throw new MessagingException("Cannot create the folder "
+					+ t.getFullName());
+		}
+		targetName = t.getFullName();
+		return targetName;
+	}
+
+	protected void flush(IMAPFolder folder, long[] uids,
+			final String targetName, final boolean expunge)
+			throws MessagingException {
+		IMAPStore store = (IMAPStore) folder.getStore();
+		final boolean move = targetName != null && store.hasCapability("MOVE");
+		final boolean uidplus = store.hasCapability("UIDPLUS");
+		final UIDSet[] set = UIDSet.createUIDSets(uids);
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol p) throws ProtocolException {
+				if (targetName != null) {
+					Argument args = new Argument();
+					args.writeAtom(UIDSet.toString(set));
+					args.writeString(BASE64MailboxEncoder.encode(targetName));
+					Response[] r = p.command(move ? "UID MOVE" : "UID COPY",
+							args);
+					p.notifyResponseHandlers(r);
+					p.handleResult(r[r.length - 1]);
+					if (move) {
+						return null;
+					}
+				}
+				Response[] r = p.command("UID STORE " + UIDSet.toString(set)
+						+ " +FLAGS.SILENT (\\Deleted)", null);
+				p.notifyResponseHandlers(r);
+				p.handleResult(r[r.length - 1]);
+				if (expunge && uidplus) {
+					p.uidexpunge(set);
+				}
+				return null;
+			}
+		});
+		if (!move && expunge && !uidplus) {
+			folder.expunge();
+		}
+	}
+
+	// inner classes
+
+	static class Pending {
+		IMAPFolder folder;
+		long uidValidity;
+		List<Long> uids = new ArrayList<Long>();
+
+		Pending(IMAPFolder folder, long uidValidity) {
+			this.folder = folder;
+			this.uidValidity = uidValidity;
+		}
+	}
+
+}
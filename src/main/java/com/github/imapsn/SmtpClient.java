@@ -31,37 +31,80 @@ package com.github.imapsn;
 // http://java.sun.com/products/javamail/javadocs/com/sun/mail/smtp/package-summary.html
 // http://java.sun.com/products/javamail/SSLNOTES.txt
 
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Message;
+import javax.mail.Address;
 import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.URLName;
 import javax.mail.internet.MimeMessage;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.sun.mail.smtp.SMTPTransport;
 import com.sun.mail.util.MailSSLSocketFactory;
 
+/**
+ * Sends mail over connected Transports that are kept for the next message
+ * instead of one connect and close per message. Up to "smtp-max-connections"
+ * sends run at once, each on its own Transport. A Transport taken from the
+ * pool is checked with NOOP first, and if it still fails before the DATA
+ * command it is replaced and the send tried once more. A send is never
+ * retried once DATA was issued, nor on a Transport connected for it, since
+ * the server may already have the message. Transports unused for
+ * "smtp-idle-timeout" seconds are closed.
+ */
 public class SmtpClient implements SmtpClientBase {
 	
+	public static int DEFAULT_MAX_CONNECTIONS = 2;
+	public static long DEFAULT_IDLE_TIMEOUT = 60 * 1000; // 1m
+
 	Properties props = System.getProperties();
 	Session session;
 	String password;
 	String connectionTimeout = "5000"; // 5s timeout
 	String socketTimeout = "5000"; // 5s timeout
+	long idleTimeout;
+	Semaphore permits;
+	LinkedList<Idle> idle = new LinkedList<Idle>();
+	ScheduledExecutorService evictor = null;
 	
 	public SmtpClient(JSONObject obj) throws JSONException {
 		this(obj.getString("smtp-host"),
 				obj.getString("smtp-user"), obj.getString("smtp-password"),
-				obj.getString("smtp-port"), obj.getBoolean("smtp-enable-ttls"));
+				obj.getString("smtp-port"), obj.getBoolean("smtp-enable-ttls"),
+				obj.optInt("smtp-max-connections", DEFAULT_MAX_CONNECTIONS),
+				obj.optLong("smtp-idle-timeout",
+						DEFAULT_IDLE_TIMEOUT / 1000) * 1000);
 	}
 	
 	public SmtpClient(String host, String user, String password,
 			 String port, boolean useTLS) {
+		this(host, user, password, port, useTLS, DEFAULT_MAX_CONNECTIONS,
+				DEFAULT_IDLE_TIMEOUT);
+	}
+
+	public SmtpClient(String host, String user, String password,
+			 String port, boolean useTLS, int maxConnections, long idleTimeout) {
 		super();
+		this.permits = new Semaphore(maxConnections, true);
+		this.idleTimeout = idleTimeout;
 		this.props.put("mail.smtp.host", host);
 		this.props.put("mail.smtp.user", user);
 		this.props.put("mail.smtp.port", port);
@@ -91,12 +134,195 @@ public class SmtpClient implements SmtpClientBase {
 		return new MimeMessage(this.session);
 	}
 
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
 	@Override
 	public void sendMessage(Message message) throws MessagingException {
-		Transport transport = session.getTransport("smtp");
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("interrupted waiting for a transport");
+		}
+		try {
+			Transport transport = lease();
+			boolean reused = transport != null;
+			if (!reused) {
+				transport = connect();
+			}
+			try {
+				transport.sendMessage(message, message.getAllRecipients());
+			} catch (SendFailedException e) {
+				// bad recipients, the connection is fine
+				release(transport);
+				throw e;
+			} catch (MessagingException e) {
+				close(transport);
+				if (!reused || isDataStarted(transport)) {
+					throw e;
+				}
+				// the pooled connection went stale before the message, try
+				// a new one
+				transport = connect();
+				try {
+					transport.sendMessage(message, message.getAllRecipients());
+				} catch (MessagingException again) {
+					close(transport);
+					throw again;
+				}
+			}
+			release(transport);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Close the idle Transports. Sends in progress keep theirs.
+	 */
+	public void close() {
+		List<Idle> closing;
+		synchronized (this) {
+			closing = new ArrayList<Idle>(idle);
+			idle.clear();
+		}
+		for (Idle i : closing) {
+			close(i.transport);
+		}
+	}
+
+	// pooling
+
+	/**
+	 * Return a pooled Transport that still answers NOOP, or null if there is
+	 * none.
+	 */
+	protected Transport lease() throws MessagingException {
+		while (true) {
+			Idle i;
+			synchronized (this) {
+				if (idle.isEmpty()) {
+					break;
+				}
+				i = idle.removeFirst();
+			}
+			// isConnected() sends a NOOP
+			if (System.currentTimeMillis() - i.since < idleTimeout
+					&& i.transport.isConnected()) {
+				return i.transport;
+			}
+			close(i.transport);
+		}
+		return null;
+	}
+
+	protected Transport connect() throws MessagingException {
+		Transport transport = session.getTransport(new Provider(
+				Provider.Type.TRANSPORT, "smtp", PooledTransport.class
+						.getName(), "imapsn", null));
 		transport.connect(props.getProperty("mail.smtp.host"),props.getProperty("mail.smtp.user"),this.password);
-		transport.sendMessage(message, message.getAllRecipients());
-		transport.close();
+		return transport;
+	}
+
+	/**
+	 * True if the last send on <code>transport</code> got as far as the DATA
+	 * command, or if that cannot be told.
+	 */
+	protected boolean isDataStarted(Transport transport) {
+		if (transport instanceof PooledTransport) {
+			return ((PooledTransport) transport).dataStarted;
+		}
+		return true;
+	}
+
+	protected synchronized void release(Transport transport) {
+		idle.addFirst(new Idle(transport));
+		startEvictor();
+	}
+
+	protected void close(Transport transport) {
+		try {
+			transport.close();
+		} catch (MessagingException e) {
+			// closed anyway
+		}
+	}
+
+	/**
+	 * Close the Transports idle longer than the idle timeout. Return the
+	 * number closed.
+	 */
+	public int evictIdle() {
+		List<Idle> closing = new ArrayList<Idle>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (Iterator<Idle> it = idle.iterator(); it.hasNext();) {
+				Idle i = it.next();
+				if (now - i.since >= idleTimeout) {
+					closing.add(i);
+					it.remove();
+				}
+			}
+		}
+		for (Idle i : closing) {
+			close(i.transport);
+		}
+		return closing.size();
+	}
+
+	protected synchronized void startEvictor() {
+		if (evictor == null) {
+			evictor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "imapsn-smtp-evictor");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			long delay = Math.max(1000, idleTimeout / 2);
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					evictIdle();
+				}
+			}, delay, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// inner classes
+
+	/**
+	 * An SMTPTransport that notes whether a send issued DATA, so that a
+	 * failed send can be told apart from one the server may have taken.
+	 */
+	public static class PooledTransport extends SMTPTransport {
+		protected boolean dataStarted = false;
+
+		public PooledTransport(Session session, URLName urlname) {
+			super(session, urlname);
+		}
+
+		public synchronized void sendMessage(Message message,
+				Address[] addresses) throws MessagingException {
+			dataStarted = false;
+			super.sendMessage(message, addresses);
+		}
+
+		protected OutputStream data() throws MessagingException {
+			dataStarted = true;
+			return super.data();
+		}
+	}
+
+	static class Idle {
+		Transport transport;
+		long since = System.currentTimeMillis();
+
+		Idle(Transport transport) {
+			this.transport = transport;
+		}
 	}
 
 }
@@ -74,11 +74,10 @@ public class Util {
 			MimeMessage mm, String filename) throws MessagingException,
 			IOException {
 		boolean good = false;
-		// init keyMap
-		JSONObject keyMap = imap.getKeyMap().getJson();
 		JSONObject ret = null;
 		try {
 			JSONObject magicEnvelope = MimeUtil.getAttachedJson(mm, filename);
+			JSONObject keyMap = imap.getKeyMap().getKeysFor(magicEnvelope);
 
 			// decode magic envelope
 			ret = new JSONObject(new String(Base64.decodeBase64(magicEnvelope
@@ -0,0 +1,102 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import com.github.imapsn.ByteCounters;
+import com.github.imapsn.DeflateStreams;
+
+public class TestDeflateStreams {
+
+	static byte[] deflate(String s) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DeflaterOutputStream dos = new DeflaterOutputStream(bos, new Deflater(
+				Deflater.DEFAULT_COMPRESSION, true), 512, true);
+		dos.write(s.getBytes("US-ASCII"));
+		dos.flush();
+		return bos.toByteArray();
+	}
+
+	static String read(InputStream in, int len) throws Exception {
+		byte[] b = new byte[len];
+		int n = 0;
+		while (n < len) {
+			int r = in.read(b, n, len - n);
+			assertTrue(r > 0);
+			n += r;
+		}
+		return new String(b, "US-ASCII");
+	}
+
+	static void write(OutputStream out, String s) throws Exception {
+		out.write(s.getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	@Test
+	public void testCompressAfterOk() throws Exception {
+		String ok = "A1 OK DEFLATE active\r\n";
+		String later = "* 1 EXISTS\r\nA2 OK NOOP completed\r\n";
+		ByteArrayOutputStream server = new ByteArrayOutputStream();
+		server.write(ok.getBytes("US-ASCII"));
+		server.write(deflate(later));
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		ByteCounters counters = new ByteCounters();
+		DeflateStreams ds = new DeflateStreams(new ByteArrayInputStream(
+				server.toByteArray()), wire, counters);
+
+		String command = "A1 COMPRESS DEFLATE\r\n";
+		write(ds.getOutputStream(), command);
+		assertFalse(ds.isCompressed());
+		assertEquals(ok, read(ds.getInputStream(), ok.length()));
+		assertTrue(ds.isCompressed());
+		assertEquals(later, read(ds.getInputStream(), later.length()));
+
+		String noop = "A2 NOOP\r\n";
+		write(ds.getOutputStream(), noop);
+		byte[] sent = wire.toByteArray();
+		assertEquals(command, new String(sent, 0, command.length(),
+				"US-ASCII"));
+		InputStream inflated = new InflaterInputStream(
+				new ByteArrayInputStream(sent, command.length(), sent.length
+						- command.length()), new Inflater(true));
+		assertEquals(noop, read(inflated, noop.length()));
+
+		assertEquals(ok.length() + later.length(), counters.getBytesIn());
+		assertEquals(server.size(), counters.getWireBytesIn());
+		assertEquals(command.length() + noop.length(), counters.getBytesOut());
+		assertEquals(sent.length, counters.getWireBytesOut());
+	}
+
+	@Test
+	public void testRefusedStaysPlain() throws Exception {
+		String no = "A1 NO [COMPRESSIONACTIVE] already compressed\r\n";
+		String later = "* 1 EXISTS\r\n";
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		ByteCounters counters = new ByteCounters();
+		DeflateStreams ds = new DeflateStreams(new ByteArrayInputStream(
+				(no + later).getBytes("US-ASCII")), wire, counters);
+
+		write(ds.getOutputStream(), "A1 COMPRESS DEFLATE\r\n");
+		assertEquals(no + later, read(ds.getInputStream(), no.length()
+				+ later.length()));
+		assertFalse(ds.isCompressed());
+		write(ds.getOutputStream(), "A2 NOOP\r\n");
+		assertEquals("A1 COMPRESS DEFLATE\r\nA2 NOOP\r\n", wire
+				.toString("US-ASCII"));
+		assertEquals(0, counters.getBytesSaved());
+	}
+
+}
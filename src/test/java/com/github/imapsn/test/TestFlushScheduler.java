@@ -0,0 +1,196 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.mail.MessagingException;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.github.imapsn.FlushScheduler;
+import com.github.imapsn.ImapsnDataFile;
+
+public class TestFlushScheduler {
+
+	static class CountingFile implements ImapsnDataFile {
+		FlushScheduler scheduler;
+		int writes = 0;
+
+		CountingFile(FlushScheduler scheduler) {
+			this.scheduler = scheduler;
+		}
+
+		public String getFilename() {
+			return "/counting.json";
+		}
+
+		public JSONObject getJson() {
+			return new JSONObject();
+		}
+
+		public void save() throws MessagingException {
+			scheduler.markDirty(this);
+		}
+
+		public void write() throws MessagingException {
+			writes++;
+		}
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		FlushScheduler scheduler = new FlushScheduler(60 * 1000, 1000);
+		CountingFile file = new CountingFile(scheduler);
+		for (int i = 0; i < 50; i++) {
+			file.save();
+		}
+		assertEquals(0, file.writes);
+		assertTrue(scheduler.isDirty());
+		scheduler.flush();
+		assertEquals(1, file.writes);
+		assertFalse(scheduler.isDirty());
+	}
+
+	@Test
+	public void testBatchSize() throws Exception {
+		FlushScheduler scheduler = new FlushScheduler(60 * 1000, 10);
+		CountingFile file = new CountingFile(scheduler);
+		for (int i = 0; i < 25; i++) {
+			file.save();
+		}
+		assertEquals(2, file.writes);
+	}
+
+	@Test
+	public void testBatchBoundary() throws Exception {
+		FlushScheduler scheduler = new FlushScheduler(60 * 1000, 10);
+		CountingFile file = new CountingFile(scheduler);
+		scheduler.beginBatch();
+		for (int i = 0; i < 25; i++) {
+			file.save();
+		}
+		assertEquals(0, file.writes);
+		scheduler.endBatch();
+		assertEquals(1, file.writes);
+	}
+
+	@Test
+	public void testBatchPerThread() throws Exception {
+		final FlushScheduler scheduler = new FlushScheduler(60 * 1000, 10);
+		CountingFile mine = new CountingFile(scheduler);
+		final CountingFile other = new CountingFile(scheduler);
+		scheduler.beginBatch();
+		mine.save();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 10; i++) {
+						other.save();
+					}
+				} catch (MessagingException e) {
+					throw new RuntimeException("bug: " + e, e);
+				}
+			}
+		};
+		t.start();
+		t.join();
+		assertEquals(1, other.writes);
+		assertEquals(0, mine.writes);
+		assertTrue(scheduler.isDirty(mine));
+		scheduler.endBatch();
+		assertEquals(1, mine.writes);
+	}
+
+	@Test
+	public void testAbortBatch() throws Exception {
+		FlushScheduler scheduler = new FlushScheduler(60 * 1000, 10);
+		CountingFile file = new CountingFile(scheduler);
+		scheduler.beginBatch();
+		scheduler.beginBatch();
+		file.save();
+		assertTrue(scheduler.abortBatch().contains(file));
+		assertFalse(scheduler.isDirty(file));
+		scheduler.endBatch();
+		scheduler.flush();
+		assertEquals(0, file.writes);
+	}
+
+	@Test
+	public void testFlushIfDue() throws Exception {
+		FlushScheduler scheduler = new FlushScheduler(50, 10);
+		CountingFile file = new CountingFile(scheduler);
+		file.save();
+		assertFalse(scheduler.flushIfDue());
+		assertEquals(0, file.writes);
+		Thread.sleep(60);
+		assertTrue(scheduler.flushIfDue());
+		assertEquals(1, file.writes);
+		assertFalse(scheduler.flushIfDue());
+	}
+
+	@Test
+	public void testWriteThrough() throws Exception {
+		FlushScheduler scheduler = new FlushScheduler(0, 10);
+		CountingFile file = new CountingFile(scheduler);
+		file.save();
+		file.save();
+		assertEquals(2, file.writes);
+	}
+
+	@Test
+	public void testWriteOutsideLock() throws Exception {
+		final FlushScheduler scheduler = new FlushScheduler(60 * 1000, 1000);
+		final boolean[] answered = new boolean[1];
+		CountingFile file = new CountingFile(scheduler) {
+			public void write() throws MessagingException {
+				super.write();
+				Thread other = new Thread() {
+					public void run() {
+						answered[0] = scheduler.isDirty(getFile());
+					}
+				};
+				other.start();
+				try {
+					other.join(5000);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			CountingFile getFile() {
+				return this;
+			}
+		};
+		file.save();
+		scheduler.flush();
+		assertEquals(1, file.writes);
+		assertTrue(answered[0]);
+		assertFalse(scheduler.isDirty());
+	}
+
+	@Test
+	public void testFailedWriteStaysDirty() throws Exception {
+		FlushScheduler scheduler = new FlushScheduler(60 * 1000, 1000);
+		CountingFile file = new CountingFile(scheduler) {
+			public void write() throws MessagingException {
+				super.write();
+				if (writes == 1) {
+					throw new MessagingException("first write fails");
+				}
+			}
+		};
+		file.save();
+		try {
+			scheduler.flush();
+		} catch (MessagingException e) {
+			// expected
+		}
+		assertTrue(scheduler.isDirty(file));
+		scheduler.flush();
+		assertEquals(2, file.writes);
+		assertFalse(scheduler.isDirty());
+	}
+
+}
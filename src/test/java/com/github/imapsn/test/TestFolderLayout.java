@@ -0,0 +1,31 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.github.imapsn.FolderLayout;
+
+public class TestFolderLayout {
+
+	@Test
+	public void testSubfolder() {
+		FolderLayout layout = new FolderLayout(Arrays.asList("contacts",
+				"news"));
+		assertEquals("contacts", layout.getSubfolder("/contacts/abc"));
+		assertEquals("news", layout.getSubfolder("/news/"));
+		assertNull(layout.getSubfolder("/news@segment/2011-03/1"));
+		assertNull(layout.getSubfolder("/person-groups.json"));
+		assertNull(layout.getSubfolder("/status/abc"));
+	}
+
+	@Test
+	public void testFlat() {
+		FolderLayout layout = new FolderLayout(new ArrayList<String>());
+		assertNull(layout.getSubfolder("/contacts/abc"));
+	}
+}
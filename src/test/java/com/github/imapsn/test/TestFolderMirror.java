@@ -0,0 +1,71 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.imapsn.FolderMirror;
+import com.github.imapsn.FolderStatus;
+import com.github.imapsn.PathIndex;
+
+public class TestFolderMirror {
+
+	File dir;
+
+	@Before
+	public void makeDir() throws Exception {
+		dir = File.createTempFile("mirror", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		FolderMirror mirror = new FolderMirror(dir, "IMAPSN");
+		mirror.open();
+		mirror.setStatus(new FolderStatus(7, 12, 3, -1));
+		PathIndex index = new PathIndex(null);
+		index.put("/contacts/a", 10);
+		index.put("/news/b", 11);
+		mirror.write(10, new JSONObject("{'id': 'a', 'name': 'A'}"));
+		mirror.save(index);
+		mirror.close();
+
+		mirror = new FolderMirror(dir, "IMAPSN");
+		mirror.open();
+		assertEquals(7, mirror.getStatus().uidValidity);
+		assertEquals(12, mirror.getStatus().uidNext);
+		assertEquals(Long.valueOf(11), mirror.getUids().get("/news/b"));
+		assertEquals("A", mirror.read(10).getString("name"));
+		assertNull(mirror.read(11));
+		mirror.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		FolderMirror mirror = new FolderMirror(dir, "IMAPSN");
+		mirror.open();
+		PathIndex index = new PathIndex(null);
+		for (int uid = 1; uid <= 10; uid++) {
+			mirror.write(uid, new JSONObject("{'id': 'x', 'n': " + uid + "}"));
+		}
+		index.put("/x", 10);
+		mirror.save(index);
+		mirror.close();
+
+		File seg = new File(dir, "IMAPSN.seg");
+		assertTrue(seg.length() < 100);
+		mirror = new FolderMirror(dir, "IMAPSN");
+		mirror.open();
+		assertEquals(10, mirror.read(10).getInt("n"));
+		assertNull(mirror.read(9));
+		mirror.close();
+	}
+
+}
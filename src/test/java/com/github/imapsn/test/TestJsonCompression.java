@@ -0,0 +1,58 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.github.imapsn.MimeUtil;
+
+public class TestJsonCompression {
+
+	Session session = Session.getInstance(new Properties());
+
+	JSONObject roundTrip(JSONObject jo, int threshold, StringBuilder raw)
+			throws Exception {
+		MimeMessage mm = new MimeMessage(session);
+		MimeUtil.attachJsonObject(mm, "/person-groups", "person-groups", jo,
+				threshold);
+		mm.saveChanges();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		mm.writeTo(bos);
+		raw.append(bos.toString("US-ASCII"));
+		MimeMessage read = new MimeMessage(session, new ByteArrayInputStream(
+				bos.toByteArray()));
+		return MimeUtil.getAttachedJson(read, "person-groups");
+	}
+
+	@Test
+	public void testLargeObjectIsGzipped() throws Exception {
+		JSONObject jo = new JSONObject();
+		jo.put("id", "person-groups");
+		for (int i = 0; i < 200; i++) {
+			jo.put("friend" + i, "acct:friend" + i + "@example.com");
+		}
+		StringBuilder raw = new StringBuilder();
+		JSONObject read = roundTrip(jo, 1024, raw);
+		assertTrue(raw.indexOf("x-imapsn-encoding=gzip") != -1);
+		assertEquals(jo.toString(), read.toString());
+	}
+
+	@Test
+	public void testSmallObjectStaysPlain() throws Exception {
+		JSONObject jo = new JSONObject("{'id': 'a'}");
+		StringBuilder raw = new StringBuilder();
+		JSONObject read = roundTrip(jo, 1024, raw);
+		assertFalse(raw.indexOf("x-imapsn-encoding") != -1);
+		assertEquals("a", read.getString("id"));
+	}
+}
@@ -0,0 +1,75 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.imapsn.LocalStore;
+
+public class TestLocalStore {
+
+	File dir;
+
+	@Before
+	public void makeDir() throws Exception {
+		dir = File.createTempFile("localstore", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		LocalStore store = new LocalStore(dir);
+		store.open();
+		LocalStore.Transaction tx = store.begin();
+		tx.put("/contacts/a", new JSONObject("{'id': 'a'}"));
+		tx.put("/contacts/b", new JSONObject("{'id': 'b'}"));
+		tx.commit();
+		tx = store.begin();
+		tx.delete("/contacts/b");
+		tx.commit();
+		store.close();
+
+		store = new LocalStore(dir);
+		store.open();
+		assertEquals("a", store.get("/contacts/a").getString("id"));
+		assertTrue(store.contains("/contacts/b"));
+		assertNull(store.get("/contacts/b"));
+		assertEquals(2, store.getUnexportedCount());
+		store.close();
+	}
+
+	@Test
+	public void testTornTail() throws Exception {
+		LocalStore store = new LocalStore(dir);
+		store.open();
+		LocalStore.Transaction tx = store.begin();
+		tx.put("/contacts/a", new JSONObject("{'id': 'a'}"));
+		tx.commit();
+		tx = store.begin();
+		tx.put("/contacts/c", new JSONObject("{'id': 'c'}"));
+		tx.commit();
+		store.close();
+
+		// cut the second record short, as a crash mid-write would
+		File log = new File(dir, "wal.log");
+		RandomAccessFile raf = new RandomAccessFile(log, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		store = new LocalStore(dir);
+		store.open();
+		assertTrue(store.contains("/contacts/a"));
+		assertFalse(store.contains("/contacts/c"));
+		assertEquals(1, store.getUnexportedCount());
+		store.close();
+	}
+}
@@ -0,0 +1,80 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.github.imapsn.NewsSegment;
+import com.github.imapsn.NewsSegments;
+
+public class TestNewsSegment {
+
+	Session session = Session.getInstance(new Properties());
+
+	@Test
+	public void testPartialRead() throws Exception {
+		List<JSONObject> items = new ArrayList<JSONObject>();
+		for (int i = 0; i < 40; i++) {
+			JSONObject item = new JSONObject();
+			item.put("id", "news" + i);
+			item.put("content", "status update \u00e9 number " + i);
+			items.add(item);
+		}
+		MimeMessage mm = new MimeMessage(session);
+		NewsSegment.build(mm, "/news@segment/1", items);
+		mm.saveChanges();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		mm.writeTo(bos);
+		MimeMessage read = new MimeMessage(session, new ByteArrayInputStream(
+				bos.toByteArray()));
+
+		// the raw base64 body of part 2, as the server holds it
+		Multipart mp = (Multipart) read.getContent();
+		InputStream raw = ((MimeBodyPart) mp.getBodyPart(1))
+				.getRawInputStream();
+		ByteArrayOutputStream rawBytes = new ByteArrayOutputStream();
+		int b;
+		while ((b = raw.read()) != -1) {
+			rawBytes.write(b);
+		}
+		byte[] body = rawBytes.toByteArray();
+
+		JSONObject index = NewsSegment.readIndex(read);
+		for (JSONObject item : items) {
+			JSONArray range = index.getJSONObject("items").getJSONArray(
+					item.getString("id"));
+			long offset = range.getLong(0);
+			int length = range.getInt(1);
+			long[] fetch = NewsSegment.encodedRange(offset, length);
+			int size = (int) Math.min(fetch[1], body.length - fetch[0]);
+			byte[] got = NewsSegment.decodeRange(new ByteArrayInputStream(
+					body, (int) fetch[0], size), offset, length);
+			assertEquals(item.toString(), new String(got, "UTF8"));
+		}
+
+		assertEquals(items.size(), NewsSegment.readAll(read).size());
+	}
+
+	@Test
+	public void testPartition() throws Exception {
+		JSONObject item = new JSONObject(
+				"{'id': 'a', 'published': '2011-03-05T10:00:00'}");
+		assertEquals("2011-03", NewsSegments.getPartition(item));
+		item = new JSONObject("{'id': 'b'}");
+		assertEquals(NewsSegments.UNDATED, NewsSegments.getPartition(item));
+	}
+}
@@ -0,0 +1,55 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.github.imapsn.ObjectCache;
+
+public class TestObjectCache {
+
+	@Test
+	public void testValidation() throws Exception {
+		ObjectCache cache = new ObjectCache(4);
+		JSONObject json = new JSONObject("{'id': 'a', 'x': 1}");
+		cache.put("/a", 10, 99, json);
+
+		assertNotNull(cache.get("/a", 10, 99));
+		// replaced message or rebuilt folder
+		assertNull(cache.get("/a", 11, 99));
+		assertNull(cache.get("/a", 10, 100));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testCopies() throws Exception {
+		ObjectCache cache = new ObjectCache(4);
+		JSONObject json = new JSONObject("{'id': 'a', 'x': 1}");
+		cache.put("/a", 10, 99, json);
+		json.put("x", 2);
+		cache.get("/a", 10, 99).put("x", 3);
+		assertEquals(1, cache.get("/a", 10, 99).getInt("x"));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		ObjectCache cache = new ObjectCache(2);
+		JSONObject json = new JSONObject("{'id': 'a'}");
+		cache.put("/a", 1, 1, json);
+		cache.put("/b", 2, 1, json);
+		cache.get("/a", 1, 1);
+		cache.put("/c", 3, 1, json);
+
+		// "/b" was least recently used
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get("/b", 2, 1));
+		assertNotNull(cache.get("/a", 1, 1));
+		assertNotNull(cache.get("/c", 3, 1));
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.github.imapsn.PatchLog;
+
+public class TestPatchLog {
+
+	void assertRoundTrip(String from, String to, int expectedOps)
+			throws Exception {
+		JSONObject a = new JSONObject(from);
+		JSONObject b = new JSONObject(to);
+		JSONArray ops = PatchLog.diff(a, b);
+		assertEquals(expectedOps, ops.length());
+		PatchLog.apply(a, ops);
+		assertEquals(b.toString(), a.toString());
+	}
+
+	@Test
+	public void testAppendToGroup() throws Exception {
+		assertRoundTrip("{'id': 'g', 'everybody': [{'id': 'a'}]}",
+				"{'id': 'g', 'everybody': [{'id': 'a'}, {'id': 'b'}]}", 1);
+	}
+
+	@Test
+	public void testRemoveFromGroup() throws Exception {
+		assertRoundTrip("{'id': 'g', 'everybody': ['a', 'b', 'c']}",
+				"{'id': 'g', 'everybody': ['a', 'c']}", 1);
+	}
+
+	@Test
+	public void testMembers() throws Exception {
+		assertRoundTrip("{'id': 'g', 'x/y': 1, 'old': true, 'n': {'a': 1}}",
+				"{'id': 'g', 'x/y': 2, 'new': [1], 'n': {'a': 1, 'b': 2}}", 4);
+	}
+
+	@Test
+	public void testReorderedArrayIsReplaced() throws Exception {
+		assertRoundTrip("{'id': 'g', 'l': [1, 2, 3]}",
+				"{'id': 'g', 'l': [3, 2, 1]}", 1);
+	}
+}
@@ -50,6 +50,7 @@ public class TestSendFriendRequest {
 			Message[] mm = imap.getNewMessages("friend-request");
 			for (int i = 0; i < mm.length; i++) {
 				Friend.acceptFriendRequest(imap, (MimeMessage) mm[i]);
+				imap.commitProcessed("friend-request", mm[i]);
 			}
 
 		} catch (Exception e) {
@@ -69,6 +70,7 @@ public class TestSendFriendRequest {
 			Message[] mm = imap.getNewMessages("friend-response");
 			for (int i = 0; i < mm.length; i++) {
 				Friend.processFriendResponse(imap, (MimeMessage) mm[i]);
+				imap.commitProcessed("friend-response", mm[i]);
 			}
 
 		} catch (Exception e) {
@@ -88,6 +90,7 @@ public class TestSendFriendRequest {
 			Message[] mm = imap.getNewMessages("news-item");
 			for (int i = 0; i < mm.length; i++) {
 				NewsItem.processNewsItem(imap, (MimeMessage) mm[i]);
+				imap.commitProcessed("news-item", mm[i]);
 			}
 
 		} finally {
@@ -101,6 +104,7 @@ public class TestSendFriendRequest {
 			Message[] mm = imap.getNewMessages("news-item");
 			for (int i = 0; i < mm.length; i++) {
 				NewsItem.processNewsItem(imap, (MimeMessage) mm[i]);
+				imap.commitProcessed("news-item", mm[i]);
 			}
 
 		} finally {
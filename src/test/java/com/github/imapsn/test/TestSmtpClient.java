@@ -0,0 +1,125 @@
+package com.github.imapsn.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Test;
+
+import com.github.imapsn.SmtpClient;
+
+public class TestSmtpClient {
+
+	static Session session = Session.getInstance(new Properties());
+
+	/**
+	 * A transport that fails every send, after DATA if
+	 * <code>afterData</code>.
+	 */
+	static class FailingTransport extends SmtpClient.PooledTransport {
+		boolean afterData;
+		int sends = 0;
+
+		FailingTransport(Session session, boolean afterData) {
+			super(session, new URLName("smtp://localhost"));
+			this.afterData = afterData;
+		}
+
+		public synchronized void sendMessage(Message message,
+				Address[] addresses) throws MessagingException {
+			sends++;
+			dataStarted = afterData;
+			throw new MessagingException("connection dropped");
+		}
+
+		public synchronized boolean isConnected() {
+			return true;
+		}
+
+		public synchronized void close() {
+		}
+	}
+
+	/**
+	 * Connects FailingTransports instead of real ones.
+	 */
+	static class FakeClient extends SmtpClient {
+		int connects = 0;
+
+		FakeClient() {
+			super("localhost", "user", "password", "25", false, 1, 60 * 1000);
+		}
+
+		protected Transport connect() {
+			connects++;
+			return new FailingTransport(session, false);
+		}
+
+		void pool(Transport transport) {
+			release(transport);
+		}
+	}
+
+	MimeMessage message(SmtpClient client) throws MessagingException {
+		MimeMessage mm = client.getNewMessage();
+		mm.setFrom(new InternetAddress("alice@example.com"));
+		mm.setRecipient(Message.RecipientType.TO, new InternetAddress(
+				"bob@example.com"));
+		mm.setText("hello");
+		return mm;
+	}
+
+	@Test
+	public void testNoRetryOnNewTransport() throws Exception {
+		FakeClient client = new FakeClient();
+		try {
+			client.sendMessage(message(client));
+			fail("the send should fail");
+		} catch (MessagingException e) {
+			// expected
+		}
+		assertEquals(1, client.connects);
+		assertEquals(0, client.getIdleCount());
+	}
+
+	@Test
+	public void testNoRetryAfterData() throws Exception {
+		FakeClient client = new FakeClient();
+		FailingTransport pooled = new FailingTransport(session, true);
+		client.pool(pooled);
+		try {
+			client.sendMessage(message(client));
+			fail("the send should fail");
+		} catch (MessagingException e) {
+			// expected
+		}
+		assertEquals(1, pooled.sends);
+		assertEquals(0, client.connects);
+	}
+
+	@Test
+	public void testRetryStalePooledTransport() throws Exception {
+		FakeClient client = new FakeClient();
+		FailingTransport pooled = new FailingTransport(session, false);
+		client.pool(pooled);
+		try {
+			client.sendMessage(message(client));
+			fail("the send should fail");
+		} catch (MessagingException e) {
+			// expected
+		}
+		assertEquals(1, pooled.sends);
+		assertEquals(1, client.connects);
+	}
+
+}